@@ -7,10 +7,12 @@ import java.util.UUID;
 public class BackupDirectory {
   private final UUID id;
   private final DirectoryConfiguration configuration;
+  private final Device device;
 
-  public BackupDirectory(UUID id, DirectoryConfiguration configuration) {
+  public BackupDirectory(UUID id, DirectoryConfiguration configuration, Device device) {
     this.id = id;
     this.configuration = configuration;
+    this.device = device;
   }
 
   public UUID getId() {
@@ -20,4 +22,8 @@ public class BackupDirectory {
   public DirectoryConfiguration getConfiguration() {
     return configuration;
   }
+
+  public Device getDevice() {
+    return device;
+  }
 }
@@ -0,0 +1,65 @@
+package ng3;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * The device a backup directory lives on, with the limits shared by everything scanning or reading from it. Scan
+ * permits are walker threads, read permits are files being read by the backup driver. A device without a limit
+ * hands out permits without counting.
+ */
+public class Device {
+  private final String name;
+  private final int scanConcurrency;
+  private final Semaphore scanPermits;
+  private final Semaphore readPermits;
+
+  Device(String name, Integer scanConcurrency, Integer readConcurrency) {
+    this.name = name;
+    this.scanConcurrency = scanConcurrency == null ? Integer.MAX_VALUE : scanConcurrency;
+    // fair, so a scan waiting for several permits is not starved by scans needing fewer
+    scanPermits = scanConcurrency == null ? null : new Semaphore(scanConcurrency, true);
+    readPermits = readConcurrency == null ? null : new Semaphore(readConcurrency);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  // the walker threads a directory scan may use on this device
+  public int scanThreads(int parallelism) {
+    return Math.min(parallelism, scanConcurrency);
+  }
+
+  public void acquireScan(int threads) {
+    if (scanPermits != null) {
+      scanPermits.acquireUninterruptibly(threads);
+    }
+  }
+
+  public void releaseScan(int threads) {
+    if (scanPermits != null) {
+      scanPermits.release(threads);
+    }
+  }
+
+  public boolean canRead() {
+    return readPermits == null || readPermits.availablePermits() > 0;
+  }
+
+  public void acquireRead() {
+    if (readPermits != null) {
+      readPermits.acquireUninterruptibly();
+    }
+  }
+
+  public void releaseRead() {
+    if (readPermits != null) {
+      readPermits.release();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
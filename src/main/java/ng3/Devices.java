@@ -0,0 +1,68 @@
+package ng3;
+
+import ng3.common.FileStat;
+import ng3.conf.DeviceConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups directories by the device they are on, identified by the device id of a stat where the system has one and
+ * by the file store otherwise. Directories that cannot be examined share one unlimited device.
+ */
+public class Devices {
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+  private final Map<String, DeviceConfiguration> configurations = new HashMap<>();
+  private final Map<String, Device> devices = new HashMap<>();
+  private final Device unknown = new Device("unknown", null, null);
+
+  public Devices(List<DeviceConfiguration> deviceConfigurations) {
+    for (DeviceConfiguration deviceConfiguration : deviceConfigurations) {
+      try {
+        String key = keyOf(deviceConfiguration.getPath().toPath());
+        if (configurations.putIfAbsent(key, deviceConfiguration) != null) {
+          logger.warn("Device of '{}' is already configured through '{}', ignoring", deviceConfiguration.getPath(), configurations.get(key).getPath());
+        }
+      } catch (IOException e) {
+        logger.warn("Could not determine device of '{}', its limits are not applied", deviceConfiguration.getPath(), e);
+      }
+    }
+  }
+
+  public Device forDirectory(File directory) {
+    Path path = directory.toPath();
+    String key;
+    String name;
+    try {
+      key = keyOf(path);
+      name = Files.getFileStore(path).toString();
+    } catch (IOException e) {
+      logger.warn("Could not determine device of '{}'", directory, e);
+      return unknown;
+    }
+
+    return devices.computeIfAbsent(key, k -> {
+      DeviceConfiguration configuration = configurations.get(k);
+      return configuration == null
+              ? new Device(name, null, null)
+              : new Device(name, configuration.getScanConcurrency(), configuration.getReadConcurrency());
+    });
+  }
+
+  private static String keyOf(Path path) throws IOException {
+    FileStat stat = FileStat.read(path, true);
+    if (stat.hasUnixAttributes()) {
+      return "dev:" + stat.getDevice();
+    }
+    FileStore fileStore = Files.getFileStore(path);
+    return "store:" + fileStore.name() + ":" + fileStore.type();
+  }
+}
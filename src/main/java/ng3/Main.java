@@ -71,6 +71,8 @@ public class Main {
     if (!dbHandler.isInstalled()) {
       logger.info("Installing database");
       dbHandler.install();
+    } else {
+      dbHandler.migrate();
     }
 
     UUID planId;
@@ -3,8 +3,26 @@ package ng3;
 public class Settings {
   public static final String CREATE_SCRIPT = "/ng3/create.sql";
   public static final String DROP_SCRIPT = "/ng3/drop.sql";
-  public static final long FILESCAN_POLL_TIMEOUT_IN_MS = 200;
+  public static final String MIGRATION_SCRIPTS = "/ng3/migrations/";
   public static final long BACKUP_DRIVER_POLL_TIMEOUT_IN_MS = 200;
+  public static final int BACKUP_DRIVER_CLAIM_BATCH_SIZE = 256;
+  public static final int BACKUP_DRIVER_LEASE_IN_SECONDS = 60;
+  public static final int CATALOG_BATCH_SIZE = 1000;
+  public static final long CATALOG_FLUSH_INTERVAL_IN_MS = 2000;
+  public static final int CATALOG_QUEUE_SIZE = 10000;
+  public static final int CATALOG_FETCH_SIZE = 1000;
+  public static final int CATALOG_WRITER_THREADS = 1;
+  public static final int CHANGE_JOURNAL_MAX_PATHS = 10000;
+  public static final long DIRECTORY_MTIME_GRANULARITY_IN_MS = 2000;
+  public static final int SCAN_CHECKPOINT_MIN_ENTRIES = 1000;
+  public static final int WALKER_MAX_PENDING_SUBTASKS = 256;
+  public static final int CONTENT_HASH_THREADS = 2;
+  public static final int CONTENT_HASH_CHUNK_SIZE = 64 * 1024 * 1024;
+  public static final int SCAN_SCHEDULE_SLACK_IN_MINUTES = 1;
+  public static final int SCAN_HISTORY_RETENTION_IN_DAYS = 90;
+  public static final int MOVE_DETECTION_MAX_CANDIDATES = 8;
+  public static final int DB_SESSION_STATEMENT_CACHE_SIZE = 64;
+  public static final int PATH_DICTIONARY_CACHE_SIZE = 100000;
 
   public static final String KEY_ALGORITHM = "PBKDF2WithHmacSHA256";
   public static final int KEY_ITERATIONS = 6000;
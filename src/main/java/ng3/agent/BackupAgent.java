@@ -2,6 +2,8 @@ package ng3.agent;
 
 import ng3.BackupDirectory;
 import ng3.BackupPlan;
+import ng3.Device;
+import ng3.Devices;
 import ng3.common.ShutdownSynchronizer;
 import ng3.common.SimpleThreadFactory;
 import ng3.common.TimeUtilsNG;
@@ -13,6 +15,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
@@ -52,6 +58,12 @@ public class BackupAgent {
 
     configuration.getBackupDriver().start(configuration);
 
+    ChangeJournal changeJournal = new ChangeJournal(backupDirectories);
+    boolean watching = !runOnce && changeJournal.isEnabled();
+    if (watching) {
+      changeJournal.start();
+    }
+
     ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1, new SimpleThreadFactory("BackupTask"));
     List<ScheduledFuture<?>> scheduledTasks = new ArrayList<>();
 
@@ -68,7 +80,7 @@ public class BackupAgent {
      * det KANSKE inte blir någon skillnad - men det kan vara värt att fundera på
      */
     if (runBackup) {
-      scheduledTasks.add(scheduleTask(plan.getLastStarted(), configuration.getIntervalInMinutes(), forceBackupNow, runOnce, scheduler, countDownLatch, () -> runBackupJob(backupDirectories)));
+      scheduledTasks.add(scheduleTask(plan.getLastStarted(), configuration.getIntervalInMinutes(), forceBackupNow, runOnce, scheduler, countDownLatch, () -> runBackupJob(backupDirectories, watching ? changeJournal : null)));
     }
     if (runVersioning) {
       scheduledTasks.add(scheduleTask(plan.getLastVersioned(), configuration.getVersioningIntervalInMinutes(), forceVersioningNow, runOnce, scheduler, countDownLatch, () -> runVersioningJob(backupDirectories)));
@@ -95,12 +107,15 @@ public class BackupAgent {
         Thread.interrupted();
       }
     }
+    if (watching) {
+      changeJournal.stop();
+    }
     configuration.getBackupDriver().finish();
     logger.info("BackupAgent shut down after {}", TimeUtilsNG.formatMillis(System.currentTimeMillis() - t0));
     return true;
   }
 
-  private void runBackupJob(List<BackupDirectory> backupDirectories) {
+  private void runBackupJob(List<BackupDirectory> backupDirectories, ChangeJournal changeJournal) {
     BackupPlan plan = dbClient.getBackupPlan(planId);
     logger.debug("runBackupJob(), time since last started: {}", debugTimeSinceLast(plan.getLastStarted()));
 
@@ -110,7 +125,7 @@ public class BackupAgent {
     BackupReportWriter report = new BackupReportWriter();
     report.setStartedAt(ZonedDateTime.now());
     BackupDriver.BackupSession session = configuration.getBackupDriver().startSession(dbClient, configuration, report, backupDirectories);
-    new FileScanner(dbClient, report, backupDirectories).scan();
+    new FileScanner(dbClient, report, backupDirectories, configuration.getScanner(), changeJournal).scan();
     session.endSession();
 
     report.setFinishedAt(ZonedDateTime.now());
@@ -154,7 +169,7 @@ public class BackupAgent {
       } else if (!path.isDirectory()) {
         hasErrors = true;
         logger.error("Directory '{}' is not a directory", path);
-      } else if (!path.canRead() || !path.canExecute() || path.listFiles() == null) {
+      } else if (!path.canRead() || !path.canExecute() || !canList(path)) {
         hasErrors = true;
         logger.error("Cannot access directory '{}' properly", path);
       }
@@ -162,6 +177,15 @@ public class BackupAgent {
     return !hasErrors;
   }
 
+  // opening the listing is enough, reading it all could take long and a lot of memory
+  private boolean canList(File path) {
+    try (DirectoryStream<Path> ignored = Files.newDirectoryStream(path.toPath())) {
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
   private List<BackupDirectory> findBackupDirectories() {
     Map<File, ConfiguredDirectory> savedDirectories = dbClient.buildQuery("select directory_id, directory from directory where plan_id=?")
             .withParam().uuidValue(1, planId)
@@ -182,14 +206,16 @@ public class BackupAgent {
             })
             .collect(Collectors.toList());
 
+    Devices devices = new Devices(configuration.getDevices());
     List<BackupDirectory> backupDirectories = new ArrayList<>();
     List<BackupDirectory> newDirectories = new ArrayList<>();
     for (DirectoryConfiguration directory : configuration.getDirectories()) {
+      Device device = devices.forDirectory(directory.getDirectory());
       if (savedDirectories.containsKey(directory.getDirectory())) {
-        BackupDirectory backupDirectory = new BackupDirectory(savedDirectories.get(directory.getDirectory()).id, directory);
+        BackupDirectory backupDirectory = new BackupDirectory(savedDirectories.get(directory.getDirectory()).id, directory, device);
         backupDirectories.add(backupDirectory);
       } else {
-        BackupDirectory backupDirectory = new BackupDirectory(UUID.randomUUID(), directory);
+        BackupDirectory backupDirectory = new BackupDirectory(UUID.randomUUID(), directory, device);
         newDirectories.add(backupDirectory);
       }
     }
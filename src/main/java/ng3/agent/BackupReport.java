@@ -2,10 +2,12 @@ package ng3.agent;
 
 import java.time.ZonedDateTime;
 import java.util.List;
+import java.util.Map;
 
 public interface BackupReport {
   FileScannerReport getFileScannerReport();
   TargetReport getTargetReport();
+  Map<String, ? extends DeviceReport> getDeviceReports();
   List<String> getErrors();
   List<String> getWarnings();
   ZonedDateTime getStartedAt();
@@ -18,4 +20,8 @@ public interface BackupReport {
   interface TargetReport {
 
   }
+
+  interface DeviceReport {
+
+  }
 }
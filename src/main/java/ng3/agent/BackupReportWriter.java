@@ -1,5 +1,6 @@
 package ng3.agent;
 
+import ng3.Device;
 import ng3.common.TimeUtilsNG;
 
 import java.time.ZonedDateTime;
@@ -7,6 +8,8 @@ import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 public class BackupReportWriter implements BackupReport {
   private List<String> warnings = Collections.synchronizedList(new ArrayList<>());
@@ -15,6 +18,7 @@ public class BackupReportWriter implements BackupReport {
   private ZonedDateTime finishedAt;
   private final FileScannerReportWriter fileScannerReport = new FileScannerReportWriter();
   private final TargetReportWriter targetReport = new TargetReportWriter();
+  private final Map<String, DeviceReportWriter> deviceReports = new ConcurrentSkipListMap<>();
 
   public FileScannerReport getFileScannerReport() {
     return fileScannerReport;
@@ -25,6 +29,11 @@ public class BackupReportWriter implements BackupReport {
     return targetReport;
   }
 
+  @Override
+  public Map<String, DeviceReportWriter> getDeviceReports() {
+    return Collections.unmodifiableMap(deviceReports);
+  }
+
   @Override
   public List<String> getErrors() {
     return Collections.unmodifiableList(errors);
@@ -53,6 +62,10 @@ public class BackupReportWriter implements BackupReport {
     return targetReport;
   }
 
+  public DeviceReportWriter getDeviceReportWriter(Device device) {
+    return deviceReports.computeIfAbsent(device.getName(), k -> new DeviceReportWriter());
+  }
+
   public void setStartedAt(ZonedDateTime startedAt) {
     this.startedAt = startedAt;
   }
@@ -88,6 +101,7 @@ public class BackupReportWriter implements BackupReport {
     }
     sb.append("FileScanner stats: [").append(fileScannerReport.toString()).append("]").append("\n");
     sb.append("Target stats: [").append(targetReport.toString()).append("]");
+    deviceReports.forEach((device, deviceReport) -> sb.append("\n").append("Device stats for ").append(device).append(": [").append(deviceReport).append("]"));
     return sb.toString();
   }
 
@@ -99,6 +113,8 @@ public class BackupReportWriter implements BackupReport {
     private int newFiles;
     private int updatedFiles;
     private int deletedFiles;
+    private int skippedDirectories;
+    private int movedFiles;
     private ZonedDateTime startedAt;
     private ZonedDateTime finishedAt;
 
@@ -138,9 +154,21 @@ public class BackupReportWriter implements BackupReport {
       deletedFiles++;
     }
 
+    public synchronized void movedFile() {
+      movedFiles++;
+    }
+
+    public synchronized void skippedDirectory() {
+      skippedDirectories++;
+    }
+
+    public synchronized void deletedFiles(int count) {
+      deletedFiles += count;
+    }
+
     @Override
     public String toString() {
-      return "time=" + TimeUtilsNG.formatMillis(ChronoUnit.MILLIS.between(startedAt, finishedAt)) + ", found=" + foundFiles + ", rejected=" + rejectedFiles + ", acceptedFiles=" + acceptedFiles + ", acceptedDirs=" + acceptedDirectories + ", newFiles=" + newFiles + ", updatedFiles=" + updatedFiles + ", deletedFiles=" + deletedFiles;
+      return "time=" + TimeUtilsNG.formatMillis(ChronoUnit.MILLIS.between(startedAt, finishedAt)) + ", found=" + foundFiles + ", rejected=" + rejectedFiles + ", acceptedFiles=" + acceptedFiles + ", acceptedDirs=" + acceptedDirectories + ", newFiles=" + newFiles + ", updatedFiles=" + updatedFiles + ", deletedFiles=" + deletedFiles + ", movedFiles=" + movedFiles + ", skippedDirs=" + skippedDirectories;
     }
   }
 
@@ -148,6 +176,7 @@ public class BackupReportWriter implements BackupReport {
     private int processedFiles;
     private int successfulFiles;
     private int failedFiles;
+    private int deferredFiles;
     private ZonedDateTime startedAt;
     private ZonedDateTime finishedAt;
 
@@ -171,9 +200,45 @@ public class BackupReportWriter implements BackupReport {
       failedFiles++;
     }
 
+    public synchronized void deferredFiles(int count) {
+      deferredFiles += count;
+    }
+
     @Override
     public String toString() {
-      return "time=" + TimeUtilsNG.formatMillis(ChronoUnit.MILLIS.between(startedAt, finishedAt)) + ", processedFiles=" + processedFiles + ", successfulFiles=" + successfulFiles + ", failedFiles=" + failedFiles;
+      return "time=" + TimeUtilsNG.formatMillis(ChronoUnit.MILLIS.between(startedAt, finishedAt)) + ", processedFiles=" + processedFiles + ", successfulFiles=" + successfulFiles + ", failedFiles=" + failedFiles + ", deferredFiles=" + deferredFiles;
+    }
+  }
+
+  // throughput is measured over the time from the first to the last scan or read on the device
+  public class DeviceReportWriter implements DeviceReport {
+    private int scannedEntries;
+    private long firstScanAt;
+    private long lastScanAt;
+    private int readFiles;
+    private long readBytes;
+    private long firstReadAt;
+    private long lastReadAt;
+
+    public synchronized void scanned(int entries, long startedAt) {
+      scannedEntries += entries;
+      firstScanAt = firstScanAt == 0 ? startedAt : Math.min(firstScanAt, startedAt);
+      lastScanAt = System.currentTimeMillis();
+    }
+
+    public synchronized void read(long bytes, long startedAt) {
+      readFiles++;
+      readBytes += bytes;
+      firstReadAt = firstReadAt == 0 ? startedAt : Math.min(firstReadAt, startedAt);
+      lastReadAt = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized String toString() {
+      long scanMillis = Math.max(1, lastScanAt - firstScanAt);
+      long readMillis = Math.max(1, lastReadAt - firstReadAt);
+      return "scannedEntries=" + scannedEntries + ", scanRate=" + String.format("%.0f/s", scannedEntries * 1000.0 / scanMillis)
+              + ", readFiles=" + readFiles + ", readBytes=" + readBytes + ", readRate=" + String.format("%.1f MB/s", readBytes * 1000.0 / readMillis / (1024 * 1024));
     }
   }
 }
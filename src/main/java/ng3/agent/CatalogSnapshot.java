@@ -0,0 +1,87 @@
+package ng3.agent;
+
+import ng3.Settings;
+import ng3.common.FileStat;
+import ng3.common.TimeUtilsNG;
+import ng3.db.DbClient;
+import ng3.db.DbSession;
+import ng3.db.PathDictionary;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of the catalog rows for one backup directory, used to diff a scan without querying the database
+ * for every file. Entries are removed as the scanner sees them, possibly from several walker threads at once;
+ * whatever is left afterwards was not found on disk.
+ */
+class CatalogSnapshot {
+  private final Map<String, Entry> entries;
+
+  private CatalogSnapshot(Map<String, Entry> entries) {
+    this.entries = entries;
+  }
+
+  static CatalogSnapshot load(DbClient dbClient, UUID directoryId) {
+    Map<String, Entry> entries = new ConcurrentHashMap<>();
+    PathDictionary pathDictionary = dbClient.getPathDictionary();
+    // nodes that are not cached are looked up on the session of the cursor
+    try (DbSession ignored = dbClient.openSession()) {
+      dbClient.buildQuery("select file_id, path_node_id, name, last_modified, deleted, mtime, file_size from file where directory_id=?")
+              .withFetchSize(Settings.CATALOG_FETCH_SIZE)
+              .withParam().uuidValue(1, directoryId)
+              .forEachRow(rs -> {
+                ZonedDateTime mtime = rs.getTimestamp(6);
+                long size = rs.getLong(7);
+                Entry entry = new Entry(rs.getLong(1), TimeUtilsNG.at(rs.getTimestamp(4)).toEpochMilli(), rs.getBoolean(5),
+                        mtime == null ? -1 : TimeUtilsNG.at(mtime).toEpochMilli(), rs.wasNull() ? -1 : size);
+                long nodeId = rs.getLong(2);
+                String name = rs.getString(3);
+                entries.put(pathDictionary.path(nodeId).resolve(name).toString(), entry);
+              });
+    }
+    return new CatalogSnapshot(entries);
+  }
+
+  Entry remove(Path path) {
+    return entries.remove(path.toString());
+  }
+
+  List<FileScannerEvent> remainingAsDeleted(UUID directoryId) {
+    List<FileScannerEvent> deletes = new ArrayList<>();
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      if (!e.getValue().deleted) {
+        deletes.add(FileScannerEvent.deleted(directoryId, Paths.get(e.getKey()), e.getValue().id));
+      }
+    }
+    entries.clear();
+    return deletes;
+  }
+
+  static class Entry {
+    final long id;
+    final long lastModified;
+    final boolean deleted;
+    final long mtime;
+    final long size;
+
+    private Entry(long id, long lastModified, boolean deleted, long mtime, long size) {
+      this.id = id;
+      this.lastModified = lastModified;
+      this.deleted = deleted;
+      this.mtime = mtime;
+      this.size = size;
+    }
+
+    // rows written before sizes and modification times were kept never match
+    boolean sameContent(FileStat stat) {
+      return !deleted && mtime == stat.getLastModifiedTime().toMillis() && size == stat.getSize();
+    }
+  }
+}
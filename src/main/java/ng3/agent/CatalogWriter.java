@@ -0,0 +1,533 @@
+package ng3.agent;
+
+import ng3.Settings;
+import ng3.common.TimeUtilsNG;
+import ng3.conf.ScannerConfiguration;
+import ng3.db.BatchWriter;
+import ng3.db.DatabaseException;
+import ng3.db.DbClient;
+import ng3.db.DbSession;
+import ng3.db.PathDictionary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drains scanner events into the catalog. Every writer owns a bounded queue, so walkers block when the database falls
+ * behind, and its own batch writer. The writer stops when it takes {@link FileScannerEvent#END_OF_STREAM}.
+ */
+class CatalogWriter implements Runnable {
+  private static final String UPDATE_SQL = "update file set last_modified=?, deleted=false, scan_generation=?, content_hash=?, hardlink_key=?, inode_key=?, file_size=?, mtime=?, moved_from_id=null, metadata_only=%s where file_id=?";
+  private static final String UPDATE_CONTENT_SQL = String.format(UPDATE_SQL, "false");
+  private static final String UPDATE_METADATA_SQL = String.format(UPDATE_SQL,
+          "(case when upload_finished is not null and upload_started<=upload_finished and last_modified<=upload_started then true else metadata_only end)");
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+  private final DbClient dbClient;
+  private final BackupReportWriter report;
+  private final ScannerConfiguration configuration;
+  private final BlockingQueue<FileScannerEvent> events;
+  private final BatchWriter batchWriter;
+  private final PathDictionary pathDictionary;
+  private final Map<UUID, Long> scanGenerations = new ConcurrentHashMap<>();
+  private final Map<UUID, ScanStatistics> statistics;
+  // writers live for one scan, deletes marked since then are those of this scan
+  private final ZonedDateTime startedAt = ZonedDateTime.now();
+  private final List<FileScannerEvent> pending = new ArrayList<>();
+  // the nodes of the pending events, resolved before the session is opened
+  private final Map<Path, Long> nodeIds = new HashMap<>();
+  // the nodes rejected entries are looked up in, inside the session
+  private final Map<Path, Long> parentNodes = new HashMap<>();
+  private final Map<Long, Map<String, Long>> childNodes = new HashMap<>();
+  // the counts of the pending events, only added to the report and statistics once their writes are committed
+  private final List<Runnable> counts = new ArrayList<>();
+  private long batchStartedAt;
+  private boolean hasStoredFiles;
+  private volatile boolean lostWrites;
+
+  CatalogWriter(DbClient dbClient, BackupReportWriter report, ScannerConfiguration configuration, Map<UUID, ScanStatistics> statistics) {
+    this.dbClient = dbClient;
+    this.report = report;
+    this.configuration = configuration;
+    this.statistics = statistics;
+    events = new ArrayBlockingQueue<>(configuration.getQueueSize());
+    batchWriter = dbClient.newBatchWriter();
+    pathDictionary = dbClient.getPathDictionary();
+  }
+
+  void publish(FileScannerEvent event) {
+    while (true) {
+      try {
+        events.put(event);
+        return;
+      } catch (InterruptedException e) {
+        // an event must never be dropped, keep waiting for room
+      }
+    }
+  }
+
+  // files of the directory are stamped with the generation from now on, until it is swept
+  void startScanGeneration(UUID directoryId, long generation) {
+    scanGenerations.put(directoryId, generation);
+  }
+
+  boolean hasLostWrites() {
+    return lostWrites;
+  }
+
+  @Override
+  public void run() {
+    boolean failed = false;
+    while (true) {
+      FileScannerEvent event;
+      try {
+        event = next();
+      } catch (InterruptedException e) {
+        continue;
+      }
+
+      if (event == FileScannerEvent.END_OF_STREAM) {
+        break;
+      }
+
+      // after a failure we keep draining, so that walkers blocked on a full queue can finish
+      if (event != null && !failed) {
+        if (pending.isEmpty()) {
+          batchStartedAt = System.currentTimeMillis();
+        }
+        pending.add(event);
+      }
+      if (!failed && isWriteDue()) {
+        failed = !writePending();
+      }
+    }
+
+    if (!failed) {
+      writePending();
+    }
+  }
+
+  // only wait for as long as the pending events may stay unwritten
+  private FileScannerEvent next() throws InterruptedException {
+    if (pending.isEmpty()) {
+      return events.take();
+    }
+    long wait = batchStartedAt + configuration.getFlushIntervalInMs() - System.currentTimeMillis();
+    return wait <= 0 ? events.poll() : events.poll(wait, TimeUnit.MILLISECONDS);
+  }
+
+  private boolean isWriteDue() {
+    return pending.size() >= configuration.getBatchSize()
+            || (!pending.isEmpty() && System.currentTimeMillis() - batchStartedAt >= configuration.getFlushIntervalInMs());
+  }
+
+  /**
+   * The lookups and writes of the pending events run on one session, held only while they are written, so writers
+   * sharing a small pool take turns. False if an event could not be written, nothing more is written after that.
+   */
+  private boolean writePending() {
+    FileScannerEvent current = null;
+    try {
+      // nodes are created on a connection of their own and hashes come from other threads, both before the session
+      for (FileScannerEvent event : pending) {
+        if (event.change == null || event.change == FileScannerEvent.Change.NEW) {
+          Path directory = event.path.getParent();
+          nodeIds.put(directory, pathDictionary.nodeId(directory));
+        }
+        event.getContentHash();
+      }
+
+      try (DbSession session = dbClient.openSession()) {
+        for (FileScannerEvent event : pending) {
+          current = event;
+          if (event.change == null) {
+            scanFile(event);
+          } else {
+            applyChange(event);
+          }
+        }
+        current = null;
+        flush();
+        // the batch is part of the session, committed together with what the sweeps wrote
+        session.commit();
+      }
+      counts.forEach(Runnable::run);
+      return true;
+    } catch (Throwable error) {
+      lostWrites = true;
+      if (current != null) {
+        logger.error("Unhandled exception while writing '{}' to the catalog", current.path);
+      }
+      logger.error("", error);
+      report.addError("An unhandled error was caught while writing to the catalog, see system logs for more details");
+      return false;
+    } finally {
+      pending.clear();
+      nodeIds.clear();
+      parentNodes.clear();
+      childNodes.clear();
+      counts.clear();
+    }
+  }
+
+  private void flush() {
+    try {
+      batchWriter.flush();
+    } catch (DatabaseException e) {
+      // the lost rows are found again by the next scan, the failed batch rolled back the whole session
+      lostWrites = true;
+      counts.clear();
+      logger.error("Could not write catalog batch", e);
+      report.addError("Could not write changes to the catalog, see system logs for more details");
+    }
+  }
+
+  private void applyChange(FileScannerEvent event) {
+    switch (event.change) {
+      case NEW:
+        insertFile(event);
+        break;
+
+      case UPDATED:
+        updateFile(event.fileId, event, event.getLastModified(), null, false);
+        break;
+
+      case METADATA:
+        updateFile(event.fileId, event, event.getLastModified(), null, true);
+        break;
+
+      case DELETED:
+        deleteFile(event.fileId, event.directoryId);
+        break;
+
+      case SWEEP:
+        sweep(event.directoryId);
+        break;
+
+      case EXCLUDED:
+        keepExcluded(event);
+        break;
+
+      case CHECKPOINT:
+        checkpoint(event.directoryId, event.path);
+        break;
+
+      default:
+        throw new IllegalStateException("Unknown change: " + event.change);
+    }
+  }
+
+  private void scanFile(FileScannerEvent event) {
+    StoredFile storedFile = dbClient.buildQuery("select file_id, last_modified, deleted, content_hash, mtime, file_size from file where directory_id=? and path_node_id=? and name=?")
+            .withParam().uuidValue(1, event.directoryId)
+            .withParam().longValue(2, nodeIds.get(event.path.getParent()))
+            .withParam().pathValue(3, event.path.getFileName())
+            .executeQueryForObject(rs -> {
+              ZonedDateTime mtime = rs.getTimestamp(5);
+              long size = rs.getLong(6);
+              return new StoredFile(rs.getLong(1), rs.getTimestamp(2), rs.getBoolean(3), rs.getString(4), mtime, rs.wasNull() ? null : size);
+            });
+
+    long generation = scanGenerations.getOrDefault(event.directoryId, 0L);
+    if (storedFile == null && !event.exists()) {
+      // we haven't saved it, and it doesn't exist - do nothing
+    } else if (storedFile == null) {
+      // new file
+      insertFile(event);
+    } else if (!event.exists()) {
+      // existing file - removed - mark as deleted
+      deleteFile(storedFile.id, event.directoryId);
+    } else if (event.isHashed()) {
+      verifyFile(event, storedFile, generation);
+    } else {
+      // existing file - maybe updated?
+      ZonedDateTime lastModified = event.getLastModified();
+      if (storedFile.deleted || lastModified.isAfter(storedFile.lastModified)) {
+        updateFile(storedFile.id, event, lastModified, null, storedFile.sameContent(event));
+      } else {
+        stampFile(storedFile.id, generation);
+      }
+    }
+  }
+
+  // the content decides whether the file is backed up again, the timestamp only when there is no hash to compare
+  private void verifyFile(FileScannerEvent event, StoredFile storedFile, long generation) {
+    String contentHash = event.getContentHash();
+    ZonedDateTime lastModified = event.getLastModified();
+    boolean newer = lastModified.isAfter(storedFile.lastModified);
+
+    if (contentHash == null || storedFile.contentHash == null) {
+      if (storedFile.deleted || newer) {
+        updateFile(storedFile.id, event, lastModified, contentHash, storedFile.sameContent(event));
+      } else if (contentHash != null) {
+        // first time we see it with verification on, keep the hash for the next scan
+        batchWriter.add("update file set content_hash=? where file_id=?", p -> p
+                .stringValue(1, contentHash)
+                .withParam().longValue(2, storedFile.id));
+        stampFile(storedFile.id, generation);
+      } else {
+        stampFile(storedFile.id, generation);
+      }
+    } else if (storedFile.deleted || !contentHash.equals(storedFile.contentHash)) {
+      // a change that kept its timestamp must still move last_modified past upload_started to be picked up
+      updateFile(storedFile.id, event, newer ? lastModified : ZonedDateTime.now(), contentHash, false);
+    } else if (newer) {
+      // same content, but owner, mode or timestamps changed - only those have to be stored again
+      updateFile(storedFile.id, event, lastModified, contentHash, true);
+    } else {
+      stampFile(storedFile.id, generation);
+    }
+  }
+
+  private void stampFile(long fileId, long generation) {
+    if (generation > 0) {
+      batchWriter.add("update file set scan_generation=? where file_id=?", p -> p
+              .longValue(1, generation)
+              .withParam().longValue(2, fileId));
+    }
+  }
+
+  private void insertFile(FileScannerEvent event) {
+    UUID directoryId = event.directoryId;
+    String contentHash = event.getContentHash();
+    Long movedFrom = findMoveSource(event, contentHash);
+    long generation = scanGenerations.getOrDefault(directoryId, 0L);
+    long nodeId = nodeIds.get(event.path.getParent());
+    // the key is generated by the database
+    batchWriter.add("insert into file (directory_id, path_node_id, name, last_modified, scan_generation, content_hash, hardlink_key, inode_key, file_size, mtime, moved_from_id) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", p -> p
+            .uuidValue(1, directoryId)
+            .withParam().longValue(2, nodeId)
+            .withParam().pathValue(3, event.path.getFileName())
+            .withParam().timestampValue(4, event.getLastModified())
+            .withParam().longValue(5, generation)
+            .withParam().stringValue(6, contentHash)
+            .withParam().stringValue(7, event.stat.getHardlinkKey())
+            .withParam().stringValue(8, event.stat.getInodeKey())
+            .withParam().longValue(9, event.stat.getSize())
+            .withParam().timestampValue(10, TimeUtilsNG.at(event.stat.getLastModifiedTime()).toZonedDateTime())
+            .withParam().nullableLongValue(11, movedFrom));
+    counts.add(() -> {
+      report.getFileScannerReportWriter().newFile();
+      statisticsFor(directoryId).newFile();
+    });
+  }
+
+  /**
+   * A hash taken before the change would no longer match, so it is replaced even when there is none. A metadata-only
+   * change keeps the stored content valid, so it is marked as such when the stored version is complete - or already
+   * was marked, when an earlier metadata-only change is still pending.
+   */
+  private void updateFile(long fileId, FileScannerEvent event, ZonedDateTime lastModified, String contentHash, boolean metadataOnly) {
+    long generation = scanGenerations.getOrDefault(event.directoryId, 0L);
+    String sql = metadataOnly ? UPDATE_METADATA_SQL : UPDATE_CONTENT_SQL;
+    batchWriter.add(sql, p -> p
+            .timestampValue(1, lastModified)
+            .withParam().longValue(2, generation)
+            .withParam().stringValue(3, contentHash)
+            .withParam().stringValue(4, event.stat.getHardlinkKey())
+            .withParam().stringValue(5, event.stat.getInodeKey())
+            .withParam().longValue(6, event.stat.getSize())
+            .withParam().timestampValue(7, TimeUtilsNG.at(event.stat.getLastModifiedTime()).toZonedDateTime())
+            .withParam().longValue(8, fileId));
+    counts.add(() -> {
+      report.getFileScannerReportWriter().updatedFile();
+      statisticsFor(event.directoryId).updatedFile();
+    });
+  }
+
+  /**
+   * A stored file in the same plan with the same inode, size and modification time - or the same size and content
+   * hash - whose path is gone, is taken to have been moved here. The driver can then move or link it in the target
+   * instead of reading and storing it again. Only stored content counts: not a source whose deletion has already been
+   * stored, and not one stored as a link. A source already marked as deleted must have been deleted during this scan.
+   */
+  private Long findMoveSource(FileScannerEvent event, String contentHash) {
+    if (!hasStoredFiles()) {
+      return null;
+    }
+
+    List<StoredPath> candidates = dbClient.buildQuery("select file_id, path_node_id, name from file " +
+            "where file_size=? and ((inode_key=? and mtime=?) or content_hash=?) " +
+            "and upload_finished is not null and upload_started<=upload_finished and link_source_id is null " +
+            "and ((deleted=false and last_modified<=upload_started) or (deleted=true and last_modified>upload_finished and last_modified>=?)) " +
+            "and directory_id in (select d.directory_id from directory d, directory e where d.plan_id=e.plan_id and e.directory_id=?) " +
+            "fetch next " + Settings.MOVE_DETECTION_MAX_CANDIDATES + " rows only")
+            .withParam().longValue(1, event.stat.getSize())
+            .withParam().stringValue(2, event.stat.getInodeKey())
+            .withParam().timestampValue(3, TimeUtilsNG.at(event.stat.getLastModifiedTime()).toZonedDateTime())
+            .withParam().stringValue(4, contentHash)
+            .withParam().timestampValue(5, startedAt)
+            .withParam().uuidValue(6, event.directoryId)
+            .executeQuery(rs -> new StoredPath(rs.getLong(1), rs.getLong(2), rs.getString(3)));
+
+    // paths are resolved once the result set is closed
+    for (StoredPath candidate : candidates) {
+      if (!Files.exists(pathDictionary.path(candidate.pathNodeId).resolve(candidate.name), LinkOption.NOFOLLOW_LINKS)) {
+        counts.add(() -> report.getFileScannerReportWriter().movedFile());
+        return candidate.id;
+      }
+    }
+    return null;
+  }
+
+  // nothing can have been moved before anything was stored, which spares a fresh catalog the lookups
+  private boolean hasStoredFiles() {
+    if (!hasStoredFiles) {
+      hasStoredFiles = dbClient.buildQuery("select file_id from file where upload_finished is not null fetch next 1 rows only")
+              .executeQueryForObject(rs -> rs.getLong(1)) != null;
+    }
+    return hasStoredFiles;
+  }
+
+  /**
+   * Stamps what the catalog has of a rejected entry, so the sweep keeps it. Nothing is stamped for a directory without
+   * a node - nothing was ever stored below it. Only an entry rejected on its name might be a file or a directory.
+   */
+  private void keepExcluded(FileScannerEvent event) {
+    long generation = scanGenerations.getOrDefault(event.directoryId, 0L);
+    Long parentId = generation > 0 ? parentNode(event.path.getParent()) : null;
+    if (parentId == null) {
+      return;
+    }
+
+    String name = event.path.getFileName().toString();
+    if (event.stat == null || !event.stat.isDirectory()) {
+      batchWriter.add("update file set scan_generation=? where directory_id=? and path_node_id=? and name=? and deleted=false", p -> p
+              .longValue(1, generation)
+              .withParam().uuidValue(2, event.directoryId)
+              .withParam().longValue(3, parentId)
+              .withParam().pathValue(4, event.path.getFileName()));
+    }
+    Long nodeId = event.stat == null || event.stat.isDirectory() ? childNodes(parentId).get(name) : null;
+    Deque<Long> subtree = new ArrayDeque<>();
+    if (nodeId != null) {
+      subtree.add(nodeId);
+    }
+    while (!subtree.isEmpty()) {
+      long node = subtree.poll();
+      batchWriter.add("update file set scan_generation=? where directory_id=? and path_node_id=? and deleted=false", p -> p
+              .longValue(1, generation)
+              .withParam().uuidValue(2, event.directoryId)
+              .withParam().longValue(3, node));
+      subtree.addAll(pathDictionary.children(node).values());
+    }
+  }
+
+  // entries rejected in the same directory share their lookups for the batch, even when there is no node
+  private Long parentNode(Path directory) {
+    if (!parentNodes.containsKey(directory)) {
+      parentNodes.put(directory, pathDictionary.findNodeId(directory));
+    }
+    return parentNodes.get(directory);
+  }
+
+  private Map<String, Long> childNodes(long parentId) {
+    return childNodes.computeIfAbsent(parentId, pathDictionary::children);
+  }
+
+  private void deleteFile(long fileId, UUID directoryId) {
+    ZonedDateTime deletedAt = ZonedDateTime.now();
+    // a moved file that is gone again no longer holds back the deletion of its source
+    batchWriter.add("update file set last_modified=?, deleted=true, moved_from_id=null where file_id=?", p -> p
+            .timestampValue(1, deletedAt)
+            .withParam().longValue(2, fileId));
+    counts.add(() -> {
+      report.getFileScannerReportWriter().deletedFile();
+      statisticsFor(directoryId).deletedFiles(1);
+    });
+  }
+
+  private void sweep(UUID directoryId) {
+    Long generation = scanGenerations.remove(directoryId);
+    flush();
+    if (generation == null) {
+      return;
+    }
+    if (lostWrites) {
+      // stamps may be missing, sweeping now would mark files as deleted that are still there
+      logger.warn("Skipping delete detection, some changes could not be written to the catalog");
+      return;
+    }
+
+    // excluded files were stamped by the walk as well, what is left unstamped is gone
+    int deleted = dbClient.buildQuery("update file set last_modified=?, deleted=true, moved_from_id=null where directory_id=? and deleted=false and scan_generation<?")
+            .withParam().timestampValue(1, ZonedDateTime.now())
+            .withParam().uuidValue(2, directoryId)
+            .withParam().longValue(3, generation)
+            .executeUpdate();
+    counts.add(() -> {
+      report.getFileScannerReportWriter().deletedFiles(deleted);
+      statisticsFor(directoryId).deletedFiles(deleted);
+    });
+  }
+
+  private ScanStatistics statisticsFor(UUID directoryId) {
+    return statistics.computeIfAbsent(directoryId, k -> new ScanStatistics());
+  }
+
+  private void checkpoint(UUID directoryId, Path directory) {
+    if (lostWrites) {
+      // part of what the checkpoint vouches for might not be in the catalog
+      return;
+    }
+
+    // the checkpoints of the subdirectories are covered by this one
+    batchWriter.add("delete from scan_checkpoint where directory_id=? and parent_path=?", p -> p
+            .uuidValue(1, directoryId)
+            .withParam().pathValue(2, directory));
+    batchWriter.add("insert into scan_checkpoint (directory_id, path, parent_path) values (?, ?, ?)", p -> p
+            .uuidValue(1, directoryId)
+            .withParam().pathValue(2, directory)
+            .withParam().pathValue(3, directory.getParent()));
+  }
+
+  private static class StoredPath {
+    private final long id;
+    private final long pathNodeId;
+    private final String name;
+
+    private StoredPath(long id, long pathNodeId, String name) {
+      this.id = id;
+      this.pathNodeId = pathNodeId;
+      this.name = name;
+    }
+  }
+
+  private class StoredFile {
+    private final long id;
+    private final ZonedDateTime lastModified;
+    private final boolean deleted;
+    private final String contentHash;
+    private final ZonedDateTime mtime;
+    private final Long size;
+
+    public StoredFile(long id, ZonedDateTime lastModified, boolean deleted, String contentHash, ZonedDateTime mtime, Long size) {
+      this.id = id;
+      this.lastModified = lastModified;
+      this.deleted = deleted;
+      this.contentHash = contentHash;
+      this.mtime = mtime;
+      this.size = size;
+    }
+
+    // without hashes the size and modification time are all there is to go by, a touched file is stored again
+    private boolean sameContent(FileScannerEvent event) {
+      return !deleted && mtime != null && size != null && size == event.stat.getSize()
+              && mtime.toInstant().toEpochMilli() == event.stat.getLastModifiedTime().toMillis();
+    }
+  }
+}
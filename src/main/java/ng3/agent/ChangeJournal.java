@@ -0,0 +1,293 @@
+package ng3.agent;
+
+import ng3.BackupDirectory;
+import ng3.Settings;
+import ng3.common.SimpleThreadFactory;
+import ng3.conf.FileRuleMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches backup directories between scheduled runs and records which directories changed, so that the next run only
+ * has to visit those. The journal lives in memory only; a directory is scanned in full on the first run after start,
+ * after an overflow, and when it could not be watched completely.
+ */
+class ChangeJournal implements Runnable {
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+  private final Map<UUID, Journal> journals = new HashMap<>();
+  private final Map<WatchKey, WatchedDirectory> watchKeys = new ConcurrentHashMap<>();
+  private WatchService watchService;
+
+  ChangeJournal(List<BackupDirectory> backupDirectories) {
+    for (BackupDirectory backupDirectory : backupDirectories) {
+      if (backupDirectory.getConfiguration().isWatch()) {
+        journals.put(backupDirectory.getId(), new Journal(backupDirectory));
+      }
+    }
+  }
+
+  boolean isEnabled() {
+    return !journals.isEmpty();
+  }
+
+  void start() {
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+    } catch (IOException e) {
+      logger.warn("Could not create watch service, all directories will be scanned in full", e);
+      return;
+    }
+    new SimpleThreadFactory("ChangeJournal").newThread(this).start();
+  }
+
+  void stop() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        logger.warn("Could not close watch service", e);
+      }
+    }
+  }
+
+  /**
+   * Hands over the changes recorded for a directory and starts recording anew. Returns null when the directory has to
+   * be scanned in full.
+   */
+  DirtySet drain(BackupDirectory backupDirectory) {
+    Journal journal = journals.get(backupDirectory.getId());
+    return journal == null ? null : journal.drain();
+  }
+
+  // changes handed out by drain() did not make it into the catalog
+  void requireFullScan(BackupDirectory backupDirectory) {
+    Journal journal = journals.get(backupDirectory.getId());
+    if (journal != null) {
+      journal.overflow();
+    }
+  }
+
+  @Override
+  public void run() {
+    for (Journal journal : journals.values()) {
+      try {
+        register(journal, journal.root);
+        journal.registered();
+      } catch (IOException e) {
+        logger.warn("Could not watch directory '{}', it will be scanned in full", journal.root, e);
+      } catch (ClosedWatchServiceException e) {
+        return;
+      }
+    }
+    logger.debug("Watching {} directories", watchKeys.size());
+
+    while (true) {
+      WatchKey key;
+      try {
+        key = watchService.take();
+      } catch (InterruptedException e) {
+        continue;
+      } catch (ClosedWatchServiceException e) {
+        return;
+      }
+
+      WatchedDirectory watched = watchKeys.get(key);
+      if (watched == null) {
+        key.cancel();
+        continue;
+      }
+
+      try {
+        for (WatchEvent<?> event : key.pollEvents()) {
+          handleEvent(watched, event);
+        }
+      } catch (ClosedWatchServiceException e) {
+        return;
+      }
+
+      if (!key.reset()) {
+        watchKeys.remove(key);
+      }
+    }
+  }
+
+  private void handleEvent(WatchedDirectory watched, WatchEvent<?> event) {
+    Journal journal = watched.journal;
+    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+      journal.overflow();
+      return;
+    }
+
+    Path path = watched.directory.resolve((Path) event.context());
+    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+      if (accept(journal, path)) {
+        try {
+          register(journal, path);
+        } catch (IOException e) {
+          logger.warn("Could not watch directory '{}'", path, e);
+          journal.overflow();
+        }
+        journal.markSubtree(path);
+      }
+    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+      // might have been a directory, everything we had below it is gone as well
+      journal.markSubtree(path);
+    }
+    journal.markListing(watched.directory);
+  }
+
+  // the same decision the walker makes for the directory
+  private boolean accept(Journal journal, Path path) {
+    return DirectoryWalker.accept(journal.ruleMatcher, path);
+  }
+
+  private void register(Journal journal, Path start) throws IOException {
+    Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (!dir.equals(start) && !accept(journal, dir)) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        watchKeys.put(key, new WatchedDirectory(journal, dir));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException exc) {
+        // unreadable directories are reported by the scanner
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * The directories that changed since the last run. A listing only needs the entries directly in the directory to be
+   * rescanned, a subtree needs everything below it.
+   */
+  static class DirtySet {
+    private final Set<Path> listings;
+    private final Set<Path> subtrees;
+
+    private DirtySet(Set<Path> listings, Set<Path> subtrees) {
+      this.listings = Collections.unmodifiableSet(listings);
+      this.subtrees = Collections.unmodifiableSet(subtrees);
+    }
+
+    Set<Path> getListings() {
+      return listings;
+    }
+
+    Set<Path> getSubtrees() {
+      return subtrees;
+    }
+
+    boolean isEmpty() {
+      return listings.isEmpty() && subtrees.isEmpty();
+    }
+
+    boolean covers(Path file) {
+      Path parent = file.getParent();
+      return listings.contains(parent) || inSubtree(subtrees, parent);
+    }
+
+    private static boolean inSubtree(Set<Path> subtrees, Path path) {
+      for (Path p = path; p != null; p = p.getParent()) {
+        if (subtrees.contains(p)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static class Journal {
+    private final Path root;
+    private final FileRuleMatcher ruleMatcher;
+    private Set<Path> listings = new HashSet<>();
+    private Set<Path> subtrees = new HashSet<>();
+    private boolean registered;
+    private boolean fullScan = true;
+
+    private Journal(BackupDirectory backupDirectory) {
+      root = backupDirectory.getConfiguration().getDirectory().toPath();
+      ruleMatcher = backupDirectory.getConfiguration().getRuleMatcher();
+    }
+
+    private synchronized void registered() {
+      registered = true;
+    }
+
+    private synchronized void overflow() {
+      fullScan = true;
+      listings.clear();
+      subtrees.clear();
+    }
+
+    private synchronized void markListing(Path directory) {
+      if (!fullScan && !DirtySet.inSubtree(subtrees, directory) && listings.add(directory)) {
+        checkSize();
+      }
+    }
+
+    private synchronized void markSubtree(Path directory) {
+      if (!fullScan && !DirtySet.inSubtree(subtrees, directory) && subtrees.add(directory)) {
+        checkSize();
+      }
+    }
+
+    private void checkSize() {
+      if (listings.size() + subtrees.size() > Settings.CHANGE_JOURNAL_MAX_PATHS) {
+        overflow();
+      }
+    }
+
+    private synchronized DirtySet drain() {
+      if (fullScan) {
+        // a full scan only makes the journal trustworthy if every directory was watched when it started
+        fullScan = !registered;
+        listings.clear();
+        subtrees.clear();
+        return null;
+      }
+
+      DirtySet dirtySet = new DirtySet(listings, subtrees);
+      listings = new HashSet<>();
+      subtrees = new HashSet<>();
+      return dirtySet;
+    }
+  }
+
+  private static class WatchedDirectory {
+    private final Journal journal;
+    private final Path directory;
+
+    private WatchedDirectory(Journal journal, Path directory) {
+      this.journal = journal;
+      this.directory = directory;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package ng3.agent;
+
+import ng3.common.ContentHash;
+import ng3.common.SimpleThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Hashes file contents on a pool of its own, so walkers keep listing directories while files are read. Walkers hand
+ * the future on with the event; the catalog writer waits for it when it gets there, which also bounds the number of
+ * pending hashes by the size of the writer queue.
+ */
+class ContentHasher {
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+  private final BackupReportWriter report;
+  private final ThreadPoolExecutor pool;
+
+  ContentHasher(BackupReportWriter report, int threads) {
+    this.report = report;
+    pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads, new SimpleThreadFactory("ContentHasher"));
+    // the thread factory is not thread safe, don't leave thread creation to the walkers submitting
+    pool.prestartAllCoreThreads();
+  }
+
+  // completes with null if the file could not be read, the writer then goes by the timestamp only
+  Future<String> submit(Path path) {
+    return pool.submit(() -> {
+      try {
+        return ContentHash.of(path);
+      } catch (IOException e) {
+        logger.warn("Could not hash '{}'", path, e);
+        report.addWarning("Could not read '%s' to verify its content", path);
+        return null;
+      }
+    });
+  }
+
+  void shutdown() {
+    pool.shutdown();
+  }
+}
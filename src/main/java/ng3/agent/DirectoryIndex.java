@@ -0,0 +1,106 @@
+package ng3.agent;
+
+import ng3.Settings;
+import ng3.common.FileStat;
+import ng3.common.TimeUtilsNG;
+import ng3.db.BatchWriter;
+import ng3.db.DbClient;
+
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The modification time and inode of every directory as of the last completed scan. A directory with the same mtime
+ * and inode as last time cannot have lost any entries, so the files directly in it can skip delete detection.
+ */
+class DirectoryIndex {
+  private static final long UNKNOWN = -1;
+  private final UUID directoryId;
+  private final Map<String, Entry> stored;
+  private final Map<Path, Entry> visited = new ConcurrentHashMap<>();
+
+  private DirectoryIndex(UUID directoryId, Map<String, Entry> stored) {
+    this.directoryId = directoryId;
+    this.stored = stored;
+  }
+
+  static DirectoryIndex load(DbClient dbClient, UUID directoryId) {
+    Map<String, Entry> stored = new HashMap<>();
+    dbClient.buildQuery("select scanned_directory_id, path, last_modified, inode from scanned_directory where directory_id=?")
+            .withParam().uuidValue(1, directoryId)
+            .forEachRow(rs -> {
+              ZonedDateTime lastModified = rs.getTimestamp(3);
+              stored.put(rs.getString(2), new Entry(
+                      rs.getUuid(1),
+                      lastModified == null ? UNKNOWN : TimeUtilsNG.at(lastModified).toEpochMilli(),
+                      rs.getLong(4)));
+            });
+    return new DirectoryIndex(directoryId, stored);
+  }
+
+  void visited(Path directory, FileStat stat) {
+    long lastModified = stat.getLastModifiedTime().toMillis();
+    if (System.currentTimeMillis() - lastModified < Settings.DIRECTORY_MTIME_GRANULARITY_IN_MS) {
+      // an entry removed right after we looked might not move the mtime, so don't trust it next time
+      lastModified = UNKNOWN;
+    }
+    visited.put(directory, new Entry(null, lastModified, stat.getInode()));
+  }
+
+  boolean isUnchanged(Path directory) {
+    Entry current = visited.get(directory);
+    Entry previous = stored.get(directory.toString());
+    return current != null && previous != null && current.lastModified != UNKNOWN && current.sameAs(previous);
+  }
+
+  void save(BatchWriter batchWriter) {
+    for (Map.Entry<Path, Entry> e : visited.entrySet()) {
+      Entry current = e.getValue();
+      Entry previous = stored.remove(e.getKey().toString());
+      if (previous == null) {
+        batchWriter.add("insert into scanned_directory (scanned_directory_id, directory_id, path, last_modified, inode) values (?, ?, ?, ?, ?)", p -> p
+                .uuidValue(1, UUID.randomUUID())
+                .withParam().uuidValue(2, directoryId)
+                .withParam().pathValue(3, e.getKey())
+                .withParam().timestampValue(4, current.getLastModified())
+                .withParam().longValue(5, current.inode));
+      } else if (!current.sameAs(previous)) {
+        batchWriter.add("update scanned_directory set last_modified=?, inode=? where scanned_directory_id=?", p -> p
+                .timestampValue(1, current.getLastModified())
+                .withParam().longValue(2, current.inode)
+                .withParam().uuidValue(3, previous.id));
+      }
+    }
+
+    // whatever is left was not seen this time
+    for (Entry previous : stored.values()) {
+      batchWriter.add("delete from scanned_directory where scanned_directory_id=?", p -> p
+              .uuidValue(1, previous.id));
+    }
+    stored.clear();
+  }
+
+  private static class Entry {
+    private final UUID id;
+    private final long lastModified;
+    private final long inode;
+
+    private Entry(UUID id, long lastModified, long inode) {
+      this.id = id;
+      this.lastModified = lastModified;
+      this.inode = inode;
+    }
+
+    private boolean sameAs(Entry other) {
+      return lastModified == other.lastModified && inode == other.inode;
+    }
+
+    private ZonedDateTime getLastModified() {
+      return lastModified == UNKNOWN ? null : TimeUtilsNG.at(lastModified).toZonedDateTime();
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package ng3.agent;
+
+import ng3.BackupDirectory;
+import ng3.Settings;
+import ng3.common.FileStat;
+import ng3.common.SimpleForkJoinThreadFactory;
+import ng3.conf.FileRuleMatcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Walks the tree below one backup directory and emits an event for every accepted file. With a parallelism above one,
+ * every subdirectory becomes a task on a fork-join pool of that size, so idle workers steal whole subtrees from busy
+ * ones.
+ * <p>
+ * Directories are streamed entry by entry, and subtasks are forked in windows of at most
+ * {@link Settings#WALKER_MAX_PENDING_SUBTASKS} while the listing is still open, so memory does not grow with the
+ * number of entries in a single directory.
+ */
+class DirectoryWalker {
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+  private final UUID directoryId;
+  private final Path root;
+  private final FileRuleMatcher ruleMatcher;
+  private final int parallelism;
+  private final Consumer<FileScannerEvent> fileScannerEvents;
+  private final BackupReportWriter report;
+  private final CatalogSnapshot snapshot;
+  private final DirectoryIndex directoryIndex;
+  private final ScanProgress scanProgress;
+  private final ContentHasher contentHasher;
+  // rejected entries are passed on, so the catalog keeps what it has of them
+  private final boolean keepExcluded;
+  // directories known to be reached from the root, only used by reaches()
+  private final Set<Path> reachable = new HashSet<>();
+  private volatile boolean failed;
+
+  DirectoryWalker(BackupDirectory backupDirectory, Consumer<FileScannerEvent> fileScannerEvents, BackupReportWriter report, CatalogSnapshot snapshot, DirectoryIndex directoryIndex, ScanProgress scanProgress, ContentHasher contentHasher, boolean keepExcluded) {
+    directoryId = backupDirectory.getId();
+    root = backupDirectory.getConfiguration().getDirectory().toPath();
+    ruleMatcher = backupDirectory.getConfiguration().getRuleMatcher();
+    parallelism = backupDirectory.getDevice().scanThreads(backupDirectory.getConfiguration().getParallelism());
+    this.fileScannerEvents = fileScannerEvents;
+    this.report = report;
+    this.snapshot = snapshot;
+    this.directoryIndex = directoryIndex;
+    this.scanProgress = scanProgress;
+    this.contentHasher = contentHasher;
+    this.keepExcluded = keepExcluded;
+  }
+
+  // returns the number of entries seen below the root
+  int walk(Path root) {
+    if (parallelism == 1) {
+      return scanDirectory(root, null, true);
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(parallelism, new SimpleForkJoinThreadFactory("FileScanner-" + root.getFileName()), null, false);
+    try {
+      DirectoryTask task = new DirectoryTask(root, false);
+      pool.invoke(task);
+      return task.found;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  // true if some directory could not be read, so not every file below the root was seen
+  boolean hasFailed() {
+    return failed;
+  }
+
+  /**
+   * True if a walk from the root would get to the directory, that is if it and every directory above it were accepted
+   * by the rules. A directory that is walked or listed on its own must be checked with this first.
+   */
+  boolean reaches(Path directory) {
+    if (!directory.startsWith(root)) {
+      return false;
+    }
+    for (Path path = directory; !path.equals(root) && !reachable.contains(path); path = path.getParent()) {
+      if (!accept(ruleMatcher, path)) {
+        return false;
+      }
+    }
+    for (Path path = directory; !path.equals(root); path = path.getParent()) {
+      reachable.add(path);
+    }
+    return true;
+  }
+
+  // the decision scanEntry makes for a directory, without the report
+  static boolean accept(FileRuleMatcher ruleMatcher, Path directory) {
+    if (!ruleMatcher.accept(directory)) {
+      return false;
+    }
+    try {
+      FileStat stat = FileStat.read(directory, false);
+      return ruleMatcher.accept(directory, stat) && (!stat.isSymlink() || ruleMatcher.accept(directory, FileStat.read(directory, true)));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  // only the entries directly in the directory, subdirectories are not descended into
+  int walkListing(Path directory) {
+    return scanDirectory(directory, null, false);
+  }
+
+  // subdirectories are walked in place, unless subtasks is given - then they are collected there for forking
+  private int scanDirectory(Path directory, List<DirectoryTask> subtasks, boolean descend) {
+    int found = 0;
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+      for (Path entry : entries) {
+        found += scanEntry(entry, subtasks, descend);
+        if (subtasks != null && subtasks.size() >= Settings.WALKER_MAX_PENDING_SUBTASKS) {
+          found += forkAll(subtasks);
+        }
+      }
+    } catch (NotDirectoryException | NoSuchFileException e) {
+      logger.warn("Directory '{}' disappeared while scanning", directory);
+      report.addWarning("Directory '%s' disappeared while scanning", directory);
+    } catch (IOException | DirectoryIteratorException e) {
+      failed = true;
+      logger.error("Could not access directory '{}'", directory, e);
+      report.addError("Could not access directory '%s'", directory);
+    }
+    return found;
+  }
+
+  // returns the number of entries seen, including those below a directory walked in place
+  private int scanEntry(Path entry, List<DirectoryTask> subtasks, boolean descend) {
+    report.getFileScannerReportWriter().foundFile();
+    if (!ruleMatcher.accept(entry)) {
+      return reject(entry, null);
+    }
+
+    FileStat stat;
+    try {
+      stat = FileStat.read(entry, false);
+      if (!ruleMatcher.accept(entry, stat)) {
+        return reject(entry, stat);
+      }
+      if (stat.isSymlink()) {
+        // symlinks that made it past the rules are followed, only these need a second stat
+        stat = FileStat.read(entry, true);
+        if (!ruleMatcher.accept(entry, stat)) {
+          return reject(entry, stat);
+        }
+      }
+    } catch (IOException e) {
+      stat = null;
+    }
+
+    if (stat != null && stat.isDirectory()) {
+      report.getFileScannerReportWriter().acceptedDirectory();
+      if (scanProgress != null && scanProgress.isCompleted(entry)) {
+        return 1;
+      }
+      if (directoryIndex != null) {
+        directoryIndex.visited(entry, stat);
+      }
+      if (descend && subtasks == null) {
+        int found = 1 + scanDirectory(entry, null, true);
+        checkpoint(entry, found);
+        return found;
+      } else if (descend) {
+        subtasks.add(new DirectoryTask(entry, true));
+      }
+    } else if (stat != null && stat.isFile()) {
+      report.getFileScannerReportWriter().acceptedFile();
+      if (snapshot == null) {
+        fileScannerEvents.accept(FileScannerEvent.lookup(directoryId, entry, stat, hash(entry)));
+      } else {
+        diffFile(entry, stat);
+      }
+    } else {
+      logger.warn("Could not determine file type for '{}", entry);
+      report.addWarning("Could not determine file type for '%s'", entry);
+    }
+    return 1;
+  }
+
+  private int reject(Path entry, FileStat stat) {
+    report.getFileScannerReportWriter().rejectedFile();
+    if (keepExcluded) {
+      fileScannerEvents.accept(FileScannerEvent.excluded(directoryId, entry, stat));
+    }
+    return 1;
+  }
+
+  // small subtrees are not worth a row in the catalog, they are cheap to walk again
+  private void checkpoint(Path directory, int found) {
+    if (scanProgress != null && found >= Settings.SCAN_CHECKPOINT_MIN_ENTRIES && !failed) {
+      // the checkpoint is queued behind every event of the subtree, and written in the same batch as the last of them
+      fileScannerEvents.accept(FileScannerEvent.checkpoint(directoryId, directory));
+    }
+  }
+
+  private void diffFile(Path path, FileStat stat) {
+    CatalogSnapshot.Entry entry = snapshot.remove(path);
+
+    if (entry == null) {
+      fileScannerEvents.accept(FileScannerEvent.created(directoryId, path, stat, hash(path)));
+    } else if (contentHasher != null) {
+      // the snapshot has no hashes, the writer compares them in the catalog
+      fileScannerEvents.accept(FileScannerEvent.lookup(directoryId, path, stat, hash(path)));
+    } else if (entry.deleted || stat.getChangeTime().toMillis() > entry.lastModified) {
+      fileScannerEvents.accept(entry.sameContent(stat)
+              ? FileScannerEvent.metadataChanged(directoryId, path, stat, entry.id)
+              : FileScannerEvent.updated(directoryId, path, stat, entry.id));
+    }
+  }
+
+  // only called from within a task, the caller helps out until the whole window is done
+  private static int forkAll(List<DirectoryTask> subtasks) {
+    ForkJoinTask.invokeAll(subtasks);
+    int found = 0;
+    for (DirectoryTask subtask : subtasks) {
+      found += subtask.found;
+    }
+    subtasks.clear();
+    return found;
+  }
+
+  private Future<String> hash(Path file) {
+    return contentHasher == null ? null : contentHasher.submit(file);
+  }
+
+  private class DirectoryTask extends RecursiveAction {
+    private final Path directory;
+    private final boolean checkpoint;
+    private int found;
+
+    private DirectoryTask(Path directory, boolean checkpoint) {
+      this.directory = directory;
+      this.checkpoint = checkpoint;
+    }
+
+    @Override
+    protected void compute() {
+      List<DirectoryTask> subtasks = new ArrayList<>();
+      // the directory itself was counted by the parent
+      found = scanDirectory(directory, subtasks, true);
+      found += forkAll(subtasks);
+      if (checkpoint) {
+        checkpoint(directory, found);
+      }
+    }
+  }
+}
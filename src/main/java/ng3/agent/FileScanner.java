@@ -1,189 +1,335 @@
 package ng3.agent;
 
 import ng3.BackupDirectory;
+import ng3.Device;
 import ng3.Settings;
+import ng3.common.FileStat;
 import ng3.common.SimpleThreadFactory;
+import ng3.conf.DirectoryConfiguration;
+import ng3.conf.ScannerConfiguration;
+import ng3.db.BatchWriter;
+import ng3.db.DatabaseException;
 import ng3.db.DbClient;
+import ng3.db.DbSession;
+import ng3.db.PathDictionary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import s4lab.FileTools;
-import s5lab.configuration.FileRule;
 
-import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 class FileScanner {
   private Logger logger = LoggerFactory.getLogger(getClass());
   private final DbClient dbClient;
   private final BackupReportWriter report;
   private final List<BackupDirectory> backupDirectories;
+  private final ScannerConfiguration configuration;
+  private final ChangeJournal changeJournal;
+  private final Map<UUID, DirectoryIndex> directoryIndexes = new ConcurrentHashMap<>();
+  private final Set<UUID> completedScans = ConcurrentHashMap.newKeySet();
+  private final Map<UUID, ScanStatistics> statistics = new ConcurrentHashMap<>();
+  private final Map<UUID, ScanRun> scanRuns = new ConcurrentHashMap<>();
 
-  FileScanner(DbClient dbClient, BackupReportWriter report, List<BackupDirectory> backupDirectories) {
+  FileScanner(DbClient dbClient, BackupReportWriter report, List<BackupDirectory> backupDirectories, ScannerConfiguration configuration, ChangeJournal changeJournal) {
     this.dbClient = dbClient;
     this.report = report;
     this.backupDirectories = backupDirectories;
+    this.configuration = configuration;
+    this.changeJournal = changeJournal;
   }
 
   void scan() {
     report.getFileScannerReportWriter().setStartedAt(ZonedDateTime.now());
 
-    CountDownLatch countDownLatch = new CountDownLatch(backupDirectories.size());
-    BlockingQueue<FileScannerEvent> fileScannerEvents = new LinkedBlockingQueue<>();
+    List<CatalogWriter> writers = new ArrayList<>();
+    List<Thread> writerThreads = new ArrayList<>();
+    ThreadFactory writerThreadFactory = new SimpleThreadFactory("CatalogWriter");
+    for (int i = 0; i < configuration.getWriterThreads(); i++) {
+      CatalogWriter writer = new CatalogWriter(dbClient, report, configuration, statistics);
+      Thread t = writerThreadFactory.newThread(writer);
+      t.start();
+      writers.add(writer);
+      writerThreads.add(t);
+    }
+
+    ContentHasher contentHasher = null;
+    if (backupDirectories.stream().anyMatch(bd -> bd.getConfiguration().isVerifyContent())) {
+      contentHasher = new ContentHasher(report, configuration.getHashThreads());
+    }
+
+    List<Thread> scannerThreads = new ArrayList<>();
     ThreadFactory threadFactory = new SimpleThreadFactory("FileScanner");
     for (BackupDirectory backupDirectory : backupDirectories) {
-      threadFactory.newThread(() -> {
+      CatalogWriter writer = writerFor(writers, backupDirectory);
+      ContentHasher directoryHasher = backupDirectory.getConfiguration().isVerifyContent() ? contentHasher : null;
+      Thread t = threadFactory.newThread(() -> {
+        if (!isDue(backupDirectory)) {
+          logger.debug("Skipping '{}', it is not due for a scan", backupDirectory.getConfiguration().getDirectory());
+          report.getFileScannerReportWriter().skippedDirectory();
+          return;
+        }
+
+        // the walker uses as many threads as it has permits for
+        Device device = backupDirectory.getDevice();
+        int scanThreads = device.scanThreads(backupDirectory.getConfiguration().getParallelism());
+        device.acquireScan(scanThreads);
         try {
-          scanDirectory(fileScannerEvents, backupDirectory.getId(), backupDirectory.getConfiguration().getDirectory(), backupDirectory.getConfiguration().getRules());
-          scanForDeletes(fileScannerEvents, backupDirectory.getId());
+          ZonedDateTime scanStartedAt = ZonedDateTime.now();
+          long startedAt = System.currentTimeMillis();
+          int entries = scanBackupDirectory(writer, directoryHasher, backupDirectory);
+          scanRuns.put(backupDirectory.getId(), new ScanRun(scanStartedAt, ZonedDateTime.now(), entries));
+          report.getDeviceReportWriter(device).scanned(entries, startedAt);
+          logRuleHits(backupDirectory);
         } catch (Throwable error) {
           logger.error("Unhandled exception while processing '{}'", backupDirectory.getConfiguration().getDirectory());
           logger.error("", error);
           report.addError("An unhandled error was caught while processing '%s', see system logs for more details", backupDirectory.getConfiguration().getDirectory());
+          if (changeJournal != null) {
+            changeJournal.requireFullScan(backupDirectory);
+          }
         } finally {
-          countDownLatch.countDown();
+          device.releaseScan(scanThreads);
         }
-      }).start();
+      });
+      t.start();
+      scannerThreads.add(t);
     }
 
-    while (countDownLatch.getCount() != 0 || !fileScannerEvents.isEmpty()) {
-      FileScannerEvent event;
-      try {
-        event = fileScannerEvents.poll(Settings.FILESCAN_POLL_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
-      } catch (InterruptedException e) {
-        Thread.interrupted();
+    joinAll(scannerThreads);
+    for (CatalogWriter writer : writers) {
+      writer.publish(FileScannerEvent.END_OF_STREAM);
+    }
+    joinAll(writerThreads);
+    if (contentHasher != null) {
+      contentHasher.shutdown();
+    }
+
+    for (BackupDirectory backupDirectory : backupDirectories) {
+      if (writerFor(writers, backupDirectory).hasLostWrites()) {
+        if (changeJournal != null) {
+          changeJournal.requireFullScan(backupDirectory);
+        }
         continue;
       }
-      if (event == null) {
-        continue;
+      if (directoryIndexes.containsKey(backupDirectory.getId())) {
+        saveDirectoryIndex(directoryIndexes.get(backupDirectory.getId()));
+      }
+      if (completedScans.contains(backupDirectory.getId())) {
+        finishScan(backupDirectory);
+      }
+      if (scanRuns.containsKey(backupDirectory.getId())) {
+        recordScan(backupDirectory, scanRuns.get(backupDirectory.getId()));
       }
-
-      scanFile(event.directoryId, event.file);
     }
 
     report.getFileScannerReportWriter().setFinishedAt(ZonedDateTime.now());
   }
 
-  private void scanForDeletes(BlockingQueue<FileScannerEvent> fileScannerEvents, UUID directoryId) {
-    List<FileScannerEvent> deletes = dbClient.buildQuery("select file_id, filename from file where deleted=false and directory_id=?")
-            .withParam().uuidValue(1, directoryId)
-            .executeQuery(rs -> new FileScannerEvent(directoryId, rs.getFile(2)))
-            .stream()
-            .filter(v -> !v.file.exists())
-            .collect(Collectors.toList());
-    fileScannerEvents.addAll(deletes);
+  // only saved once every change found in the scan is in the catalog, otherwise the next scan could skip lost deletes
+  private void saveDirectoryIndex(DirectoryIndex directoryIndex) {
+    BatchWriter batchWriter = dbClient.newBatchWriter();
+    directoryIndex.save(batchWriter);
+    try {
+      batchWriter.flush();
+    } catch (DatabaseException e) {
+      logger.warn("Could not save directory index", e);
+    }
   }
 
-  private void scanDirectory(BlockingQueue<FileScannerEvent> fileScannerEvents, UUID directoryId, File directory, List<FileRule> fileRules) {
-    if (!directory.exists()) {
-      logger.error("Directory '{}' does not exist", directory);
-      report.addError("Directory '%s' does not exist", directory);
-      return;
+  // checkpoints are kept if this fails, the next scan resumes from them and completes again
+  private void finishScan(BackupDirectory backupDirectory) {
+    try {
+      ScanProgress.finish(dbClient, backupDirectory.getId());
+    } catch (DatabaseException e) {
+      logger.warn("Could not finish scan of '{}'", backupDirectory.getConfiguration().getDirectory(), e);
     }
+  }
 
-    if (!directory.isDirectory()) {
-      logger.error("Directory '{}' is not a directory'", directory);
-      report.addError("Directory '%s' is not a directory", directory);
-      return;
+  // watched directories are kept up to date by the journal, the others are scanned in full when their schedule says so
+  private boolean isDue(BackupDirectory backupDirectory) {
+    if (changeJournal != null && backupDirectory.getConfiguration().isWatch()) {
+      return true;
+    }
+    try {
+      return ScanSchedule.isDue(dbClient, backupDirectory, ZonedDateTime.now());
+    } catch (DatabaseException e) {
+      logger.warn("Could not read the scan schedule of '{}', scanning it", backupDirectory.getConfiguration().getDirectory(), e);
+      return true;
     }
+  }
 
-    File[] files = directory.listFiles();
-    if (files == null) {
-      logger.error("Could not access directory '{}'", directory);
-      report.addError("Could not access directory '%s'", directory);
-      return;
+  // only after the writers are done, the statistics count what made it into the catalog
+  private void recordScan(BackupDirectory backupDirectory, ScanRun scanRun) {
+    ScanStatistics directoryStatistics = statistics.getOrDefault(backupDirectory.getId(), new ScanStatistics());
+    try {
+      ScanSchedule.record(dbClient, backupDirectory, completedScans.contains(backupDirectory.getId()), scanRun.startedAt, scanRun.finishedAt, scanRun.entries, directoryStatistics);
+    } catch (DatabaseException e) {
+      logger.warn("Could not record scan of '{}'", backupDirectory.getConfiguration().getDirectory(), e);
     }
+  }
+
+  private void logRuleHits(BackupDirectory backupDirectory) {
+    if (logger.isDebugEnabled()) {
+      backupDirectory.getConfiguration().getRuleMatcher().drainHits().forEach((rule, hits) ->
+              logger.debug("Rule {} rejected {} entries in '{}'", rule.getClass().getSimpleName(), hits, backupDirectory.getConfiguration().getDirectory()));
+    }
+  }
 
-    for (File file : files) {
-      report.getFileScannerReportWriter().foundFile();
-      boolean accepted = true;
-      for (FileRule fileRule : fileRules) {
-        if (!fileRule.accept(file)) {
-          accepted = false;
-          break;
+  // all events for a directory go through the same writer, which keeps them in order
+  private CatalogWriter writerFor(List<CatalogWriter> writers, BackupDirectory backupDirectory) {
+    return writers.get(Math.floorMod(backupDirectory.getId().hashCode(), writers.size()));
+  }
+
+  private void joinAll(List<Thread> threads) {
+    for (Thread t : threads) {
+      while (t.isAlive()) {
+        try {
+          t.join();
+        } catch (InterruptedException e) {
+          Thread.interrupted();
         }
       }
-      if (!accepted) {
-        report.getFileScannerReportWriter().rejectedFile();
-        continue;
-      }
+    }
+  }
+
+  // returns the number of entries seen
+  private int scanBackupDirectory(CatalogWriter writer, ContentHasher contentHasher, BackupDirectory backupDirectory) {
+    Consumer<FileScannerEvent> fileScannerEvents = writer::publish;
+    Path root = backupDirectory.getConfiguration().getDirectory().toPath();
+    FileStat rootStat;
+    try {
+      rootStat = FileStat.read(root, true);
+    } catch (NoSuchFileException e) {
+      logger.error("Directory '{}' does not exist", root);
+      report.addError("Directory '%s' does not exist", root);
+      return 0;
+    } catch (IOException e) {
+      logger.error("Could not access directory '{}'", root, e);
+      report.addError("Could not access directory '%s'", root);
+      return 0;
+    }
+
+    if (!rootStat.isDirectory()) {
+      logger.error("Directory '{}' is not a directory'", root);
+      report.addError("Directory '%s' is not a directory", root);
+      return 0;
+    }
 
-      if (file.isDirectory()) {
-        report.getFileScannerReportWriter().acceptedDirectory();
-        scanDirectory(fileScannerEvents, directoryId, file, fileRules);
-      } else if (file.isFile()) {
-        report.getFileScannerReportWriter().acceptedFile();
-        fileScannerEvents.add(new FileScannerEvent(directoryId, file));
+    UUID directoryId = backupDirectory.getId();
+    ChangeJournal.DirtySet dirtySet = changeJournal == null ? null : changeJournal.drain(backupDirectory);
+    if (dirtySet != null) {
+      return scanDirtyPaths(fileScannerEvents, contentHasher, backupDirectory, dirtySet);
+    }
+
+    ScanProgress progress = ScanProgress.start(dbClient, directoryId);
+    if (progress.isResumed()) {
+      logger.info("Resuming interrupted scan of '{}', skipping {} completed subtrees", root, progress.getCompletedCount());
+    }
+
+    int entries;
+    if (backupDirectory.getConfiguration().getScanMode() == DirectoryConfiguration.ScanMode.SNAPSHOT) {
+      CatalogSnapshot snapshot = CatalogSnapshot.load(dbClient, directoryId);
+      entries = new DirectoryWalker(backupDirectory, fileScannerEvents, report, snapshot, null, progress, contentHasher, false).walk(root);
+      // the skipped subtrees were not diffed, what is left of them in the snapshot is still there
+      snapshot.remainingAsDeleted(directoryId).stream()
+              .filter(e -> !progress.covers(e.path))
+              .forEach(fileScannerEvents);
+    } else if (backupDirectory.getConfiguration().getDeleteDetection() == DirectoryConfiguration.DeleteDetection.GENERATION) {
+      // a resumed scan keeps its generation, the skipped subtrees were stamped before the interruption
+      writer.startScanGeneration(directoryId, progress.getGeneration());
+      DirectoryWalker walker = new DirectoryWalker(backupDirectory, fileScannerEvents, report, null, null, progress, contentHasher, true);
+      entries = walker.walk(root);
+      if (walker.hasFailed()) {
+        // files below the unreadable directories were not stamped
+        logger.warn("Skipping delete detection for '{}', parts of it could not be read", root);
+        report.addWarning("Skipping delete detection for '%s', parts of it could not be read", root);
       } else {
-        logger.warn("Could not determine file type for '{}", file);
-        report.addWarning("Could not determine file type for '%s'", file);
+        fileScannerEvents.accept(FileScannerEvent.sweep(directoryId));
       }
+    } else {
+      DirectoryIndex directoryIndex = DirectoryIndex.load(dbClient, directoryId);
+      directoryIndex.visited(root, rootStat);
+      // skipped subtrees are not visited, so the files in them are checked one by one
+      entries = new DirectoryWalker(backupDirectory, fileScannerEvents, report, null, directoryIndex, progress, contentHasher, false).walk(root);
+      scanForDeletes(fileScannerEvents, directoryId, v -> !directoryIndex.isUnchanged(v.getParent()));
+      directoryIndexes.put(directoryId, directoryIndex);
     }
+    completedScans.add(directoryId);
+    return entries;
   }
 
-  private void scanFile(UUID directoryId, File file) {
-    StoredFile storedFile = dbClient.buildQuery("select file_id, last_modified, deleted from file where directory_id=? and filename=?")
-            .withParam().uuidValue(1, directoryId)
-            .withParam().fileValue(2, file)
-            .executeQueryForObject(rs -> new StoredFile(rs.getUuid(1), rs.getTimestamp(2), rs.getBoolean(3)));
-
-    if (storedFile == null && !file.exists()) {
-      // we haven't saved it, and it doesn't exist - do nothing
-    } else if (storedFile == null) {
-      // new file
-      UUID fileId = UUID.randomUUID();
-      ZonedDateTime lastModified = FileTools.lastModified(file);
-
-      dbClient.buildQuery("insert into file (file_id, directory_id, filename, last_modified) values (?, ?, ?, ?)")
-              .withParam().uuidValue(1, fileId)
-              .withParam().uuidValue(2, directoryId)
-              .withParam().fileValue(3, file)
-              .withParam().timestampValue(4, lastModified)
-              .executeUpdate();
-      report.getFileScannerReportWriter().newFile();
-    } else if (!file.exists()) {
-      // existing file - removed - mark as deleted
-      dbClient.buildQuery("update file set last_modified=?, deleted=true where file_id=?")
-              .withParam().timestampValue(1, ZonedDateTime.now())
-              .withParam().uuidValue(2, storedFile.id)
-              .executeUpdate();
-      report.getFileScannerReportWriter().deletedFile();
+  // incremental scans always look files up, loading a snapshot would cost more than visiting the few changed paths
+  private int scanDirtyPaths(Consumer<FileScannerEvent> fileScannerEvents, ContentHasher contentHasher, BackupDirectory backupDirectory, ChangeJournal.DirtySet dirtySet) {
+    logger.debug("Scanning {} changed directories and {} changed subtrees in '{}'", dirtySet.getListings().size(), dirtySet.getSubtrees().size(), backupDirectory.getConfiguration().getDirectory());
+    if (dirtySet.isEmpty()) {
+      return 0;
+    }
 
-    } else {
-      // existing file - maybe updated?
-      ZonedDateTime lastModified = FileTools.lastModified(file);
-      if (storedFile.deleted || lastModified.isAfter(storedFile.lastModified)) {
-        dbClient.buildQuery("update file set last_modified=?, deleted=false where file_id=?")
-                .withParam().timestampValue(1, lastModified)
-                .withParam().uuidValue(2, storedFile.id)
-                .executeUpdate();
-        report.getFileScannerReportWriter().updatedFile();
+    int entries = 0;
+    DirectoryWalker walker = new DirectoryWalker(backupDirectory, fileScannerEvents, report, null, null, null, contentHasher, false);
+    // a full walk would not get to a directory below an excluded one, however it changed
+    for (Path directory : dirtySet.getListings()) {
+      if (Files.isDirectory(directory) && walker.reaches(directory)) {
+        entries += walker.walkListing(directory);
+      }
+    }
+    for (Path directory : dirtySet.getSubtrees()) {
+      if (Files.isDirectory(directory) && walker.reaches(directory)) {
+        entries += walker.walk(directory);
       }
     }
+    scanForDeletes(fileScannerEvents, backupDirectory.getId(), dirtySet::covers);
+    return entries;
   }
 
-  private class FileScannerEvent {
-    private final UUID directoryId;
-    private final File file;
-
-    private FileScannerEvent(UUID directoryId, File file) {
-      this.directoryId = directoryId;
-      this.file = file;
+  /**
+   * Rows are checked as they are read and only the files that are gone are kept. Nodes missing from the cache of the
+   * dictionary are looked up on the session of the cursor, the pool might only have the one connection. Publishing may
+   * block on a writer, so it waits until the cursor is closed.
+   */
+  private void scanForDeletes(Consumer<FileScannerEvent> fileScannerEvents, UUID directoryId, Predicate<Path> scope) {
+    PathDictionary pathDictionary = dbClient.getPathDictionary();
+    List<Path> gone = new ArrayList<>();
+    try (DbSession ignored = dbClient.openSession()) {
+      dbClient.buildQuery("select path_node_id, name from file where deleted=false and directory_id=?")
+              .withFetchSize(Settings.CATALOG_FETCH_SIZE)
+              .withParam().uuidValue(1, directoryId)
+              .forEachRow(rs -> {
+                long nodeId = rs.getLong(1);
+                String name = rs.getString(2);
+                Path path = pathDictionary.path(nodeId).resolve(name);
+                if (scope.test(path) && !Files.exists(path)) {
+                  gone.add(path);
+                }
+              });
     }
+
+    gone.stream()
+            .map(v -> FileScannerEvent.lookup(directoryId, v, null, null))
+            .forEach(fileScannerEvents);
   }
 
-  private class StoredFile {
-    private final UUID id;
-    private final ZonedDateTime lastModified;
-    private final boolean deleted;
+  private static class ScanRun {
+    private final ZonedDateTime startedAt;
+    private final ZonedDateTime finishedAt;
+    private final int entries;
 
-    public StoredFile(UUID id, ZonedDateTime lastModified, boolean deleted) {
-      this.id = id;
-      this.lastModified = lastModified;
-      this.deleted = deleted;
+    private ScanRun(ZonedDateTime startedAt, ZonedDateTime finishedAt, int entries) {
+      this.startedAt = startedAt;
+      this.finishedAt = finishedAt;
+      this.entries = entries;
     }
   }
 }
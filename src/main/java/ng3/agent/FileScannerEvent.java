@@ -0,0 +1,117 @@
+package ng3.agent;
+
+import ng3.common.FileStat;
+import ng3.common.TimeUtilsNG;
+
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * A file found (or found missing) by the scanner. The attributes read while walking travel with the event, so the
+ * catalog consumer never has to stat the file again. A missing file has no attributes. In directories that verify
+ * content, files also carry the pending hash of their contents.
+ */
+class FileScannerEvent {
+  static final FileScannerEvent END_OF_STREAM = new FileScannerEvent(null, null, null, null, 0, null);
+  final UUID directoryId;
+  final Path path;
+  final FileStat stat;
+  final Change change;
+  // 0 unless the catalog row is known
+  final long fileId;
+  private final Future<String> contentHash;
+
+  private FileScannerEvent(UUID directoryId, Path path, FileStat stat, Change change, long fileId, Future<String> contentHash) {
+    this.directoryId = directoryId;
+    this.path = path;
+    this.stat = stat;
+    this.change = change;
+    this.fileId = fileId;
+    this.contentHash = contentHash;
+  }
+
+  // the catalog has not been consulted yet, the consumer must look up the file
+  static FileScannerEvent lookup(UUID directoryId, Path path, FileStat stat, Future<String> contentHash) {
+    return new FileScannerEvent(directoryId, path, stat, null, 0, contentHash);
+  }
+
+  static FileScannerEvent created(UUID directoryId, Path path, FileStat stat, Future<String> contentHash) {
+    return new FileScannerEvent(directoryId, path, stat, Change.NEW, 0, contentHash);
+  }
+
+  static FileScannerEvent updated(UUID directoryId, Path path, FileStat stat, long fileId) {
+    return new FileScannerEvent(directoryId, path, stat, Change.UPDATED, fileId, null);
+  }
+
+  // changed, but with the same size and modification time as the stored version
+  static FileScannerEvent metadataChanged(UUID directoryId, Path path, FileStat stat, long fileId) {
+    return new FileScannerEvent(directoryId, path, stat, Change.METADATA, fileId, null);
+  }
+
+  static FileScannerEvent deleted(UUID directoryId, Path path, long fileId) {
+    return new FileScannerEvent(directoryId, path, null, Change.DELETED, fileId, null);
+  }
+
+  // every file of the directory not stamped with its current scan generation is gone
+  static FileScannerEvent sweep(UUID directoryId) {
+    return new FileScannerEvent(directoryId, null, null, Change.SWEEP, 0, null);
+  }
+
+  // rejected by a rule but still there, whatever the catalog has of it or below it is kept - the stat is null when the
+  // name alone was rejected
+  static FileScannerEvent excluded(UUID directoryId, Path path, FileStat stat) {
+    return new FileScannerEvent(directoryId, path, stat, Change.EXCLUDED, 0, null);
+  }
+
+  // the subtree below the directory has been walked, once written it does not have to be walked again on resume
+  static FileScannerEvent checkpoint(UUID directoryId, Path directory) {
+    return new FileScannerEvent(directoryId, directory, null, Change.CHECKPOINT, 0, null);
+  }
+
+  boolean exists() {
+    return stat != null;
+  }
+
+  boolean isHashed() {
+    return contentHash != null;
+  }
+
+  // waits for the hash if it is still being computed, null if the file could not be read
+  String getContentHash() {
+    if (contentHash == null) {
+      return null;
+    }
+    try {
+      return contentHash.get();
+    } catch (InterruptedException e) {
+      // shutting down, the file goes by its timestamp like one that could not be read
+      Thread.currentThread().interrupt();
+      contentHash.cancel(true);
+      return null;
+    } catch (ExecutionException | CancellationException e) {
+      return null;
+    }
+  }
+
+  String getHardlinkKey() {
+    return stat == null ? null : stat.getHardlinkKey();
+  }
+
+  ZonedDateTime getLastModified() {
+    return stat == null ? null : TimeUtilsNG.at(stat.getChangeTime()).toZonedDateTime();
+  }
+
+  enum Change {
+    NEW,
+    UPDATED,
+    METADATA,
+    DELETED,
+    SWEEP,
+    EXCLUDED,
+    CHECKPOINT
+  }
+}
@@ -0,0 +1,93 @@
+package ng3.agent;
+
+import ng3.db.DbClient;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Progress of a full scan of one backup directory, kept in the catalog so that a scan interrupted by a restart can
+ * resume. A subtree is checkpointed once it has been walked and everything found in it has been written, and is
+ * skipped when the scan resumes. A resumed scan keeps its generation, so stamps from before the interruption count.
+ */
+class ScanProgress {
+  private final long generation;
+  private final boolean resumed;
+  private final Set<Path> completed;
+
+  private ScanProgress(long generation, boolean resumed, Set<Path> completed) {
+    this.generation = generation;
+    this.resumed = resumed;
+    this.completed = completed;
+  }
+
+  static ScanProgress start(DbClient dbClient, UUID directoryId) {
+    ScanProgress previous = dbClient.buildQuery("select scan_generation, scan_in_progress from directory where directory_id=?")
+            .withParam().uuidValue(1, directoryId)
+            .executeQueryForObject(rs -> new ScanProgress(rs.getLong(1), rs.getBoolean(2), null));
+
+    if (previous.resumed) {
+      Set<Path> completed = new HashSet<>();
+      dbClient.buildQuery("select path from scan_checkpoint where directory_id=?")
+              .withParam().uuidValue(1, directoryId)
+              .forEachRow(rs -> completed.add(Paths.get(rs.getString(1))));
+      return new ScanProgress(previous.generation, true, completed);
+    }
+
+    long generation = previous.generation + 1;
+    dbClient.buildQuery("delete from scan_checkpoint where directory_id=?")
+            .withParam().uuidValue(1, directoryId)
+            .executeUpdate();
+    dbClient.buildQuery("update directory set scan_generation=?, scan_in_progress=true where directory_id=?")
+            .withParam().longValue(1, generation)
+            .withParam().uuidValue(2, directoryId)
+            .executeUpdate();
+    return new ScanProgress(generation, false, new HashSet<>());
+  }
+
+  // a scan was started and never finished, it has to be resumed whether the directory is due or not
+  static boolean isInterrupted(DbClient dbClient, UUID directoryId) {
+    Boolean inProgress = dbClient.buildQuery("select scan_in_progress from directory where directory_id=?")
+            .withParam().uuidValue(1, directoryId)
+            .executeQueryForObject(rs -> rs.getBoolean(1));
+    return inProgress != null && inProgress;
+  }
+
+  static void finish(DbClient dbClient, UUID directoryId) {
+    dbClient.buildQuery("update directory set scan_in_progress=false where directory_id=?")
+            .withParam().uuidValue(1, directoryId)
+            .executeUpdate();
+    dbClient.buildQuery("delete from scan_checkpoint where directory_id=?")
+            .withParam().uuidValue(1, directoryId)
+            .executeUpdate();
+  }
+
+  long getGeneration() {
+    return generation;
+  }
+
+  boolean isResumed() {
+    return resumed;
+  }
+
+  int getCompletedCount() {
+    return completed.size();
+  }
+
+  boolean isCompleted(Path directory) {
+    return completed.contains(directory);
+  }
+
+  // true if the file is in a subtree that was completed before the interruption
+  boolean covers(Path file) {
+    for (Path p = file.getParent(); p != null; p = p.getParent()) {
+      if (completed.contains(p)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,74 @@
+package ng3.agent;
+
+import ng3.BackupDirectory;
+import ng3.Settings;
+import ng3.conf.DirectoryConfiguration;
+import ng3.db.DbClient;
+
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.UUID;
+
+/**
+ * Decides when a backup directory is due for its next full scan, from the scans recorded in the catalog. The interval
+ * to the next scan is halved after a scan that found changes and doubled after one that did not, within the bounds
+ * configured for the directory - so a busy directory is scanned every run and a quiet one rarely. A directory without
+ * a max-scan-interval is scanned every run.
+ */
+class ScanSchedule {
+  private final ZonedDateTime startedAt;
+  private final int interval;
+
+  private ScanSchedule(ZonedDateTime startedAt, int interval) {
+    this.startedAt = startedAt;
+    this.interval = interval;
+  }
+
+  // the last full scan, null if there is none
+  private static ScanSchedule last(DbClient dbClient, UUID directoryId) {
+    return dbClient.buildQuery("select started_at, next_interval from scan_history where directory_id=? and full_scan=true order by started_at desc fetch next 1 rows only")
+            .withParam().uuidValue(1, directoryId)
+            .executeQueryForObject(rs -> new ScanSchedule(rs.getTimestamp(1), rs.getInt(2)));
+  }
+
+  static boolean isDue(DbClient dbClient, BackupDirectory backupDirectory, ZonedDateTime now) {
+    if (backupDirectory.getConfiguration().getMaxScanInterval() == null || ScanProgress.isInterrupted(dbClient, backupDirectory.getId())) {
+      return true;
+    }
+    ScanSchedule last = last(dbClient, backupDirectory.getId());
+    // runs are scheduled at a fixed rate, allow for them starting a little early
+    return last == null || !now.plusMinutes(Settings.SCAN_SCHEDULE_SLACK_IN_MINUTES).isBefore(last.startedAt.plusMinutes(last.interval));
+  }
+
+  static void record(DbClient dbClient, BackupDirectory backupDirectory, boolean fullScan, ZonedDateTime startedAt, ZonedDateTime finishedAt, int entries, ScanStatistics statistics) {
+    UUID directoryId = backupDirectory.getId();
+    // only full scans schedule the next one
+    int nextInterval = fullScan ? nextInterval(backupDirectory.getConfiguration(), last(dbClient, directoryId), startedAt, statistics.getChanges()) : 0;
+
+    dbClient.buildQuery("insert into scan_history (directory_id, started_at, finished_at, full_scan, entries, new_files, updated_files, deleted_files, next_interval) values (?, ?, ?, ?, ?, ?, ?, ?, ?)")
+            .withParam().uuidValue(1, directoryId)
+            .withParam().timestampValue(2, startedAt)
+            .withParam().timestampValue(3, finishedAt)
+            .withParam().booleanValue(4, fullScan)
+            .withParam().intValue(5, entries)
+            .withParam().intValue(6, statistics.getNewFiles())
+            .withParam().intValue(7, statistics.getUpdatedFiles())
+            .withParam().intValue(8, statistics.getDeletedFiles())
+            .withParam().intValue(9, nextInterval)
+            .executeUpdate();
+    dbClient.buildQuery("delete from scan_history where directory_id=? and started_at<?")
+            .withParam().uuidValue(1, directoryId)
+            .withParam().timestampValue(2, startedAt.minusDays(Settings.SCAN_HISTORY_RETENTION_IN_DAYS))
+            .executeUpdate();
+  }
+
+  private static int nextInterval(DirectoryConfiguration configuration, ScanSchedule last, ZonedDateTime startedAt, int changes) {
+    int min = configuration.getMinScanInterval();
+    int max = configuration.getMaxScanInterval() == null ? min : configuration.getMaxScanInterval();
+    // goes by the time the scan actually covered, runs are not always as far apart as the interval asks for
+    long covered = last == null ? 0 : ChronoUnit.MINUTES.between(last.startedAt, startedAt);
+    long interval = last == null ? min : last.interval;
+    long next = changes > 0 ? Math.min(interval, covered) / 2 : Math.max(interval, covered) * 2;
+    return (int) Math.max(min, Math.min(max, next));
+  }
+}
@@ -0,0 +1,40 @@
+package ng3.agent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Changes written to the catalog for one backup directory during a scan.
+ */
+class ScanStatistics {
+  private final AtomicInteger newFiles = new AtomicInteger();
+  private final AtomicInteger updatedFiles = new AtomicInteger();
+  private final AtomicInteger deletedFiles = new AtomicInteger();
+
+  void newFile() {
+    newFiles.incrementAndGet();
+  }
+
+  void updatedFile() {
+    updatedFiles.incrementAndGet();
+  }
+
+  void deletedFiles(int count) {
+    deletedFiles.addAndGet(count);
+  }
+
+  int getNewFiles() {
+    return newFiles.get();
+  }
+
+  int getUpdatedFiles() {
+    return updatedFiles.get();
+  }
+
+  int getDeletedFiles() {
+    return deletedFiles.get();
+  }
+
+  int getChanges() {
+    return getNewFiles() + getUpdatedFiles() + getDeletedFiles();
+  }
+}
@@ -0,0 +1,37 @@
+package ng3.common;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import ng3.Settings;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A fast, non-cryptographic hash of the contents of a file, as stored in the catalog. The file is read through
+ * memory mappings of at most {@link Settings#CONTENT_HASH_CHUNK_SIZE} bytes, so large files are never copied onto
+ * the heap.
+ */
+public class ContentHash {
+  private ContentHash() {
+  }
+
+  public static String of(Path path) throws IOException {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      // a file that grows while we read is hashed as it was when opened, the next scan sees the rest
+      long size = channel.size();
+      for (long position = 0; position < size; position += Settings.CONTENT_HASH_CHUNK_SIZE) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Settings.CONTENT_HASH_CHUNK_SIZE, size - position));
+        hasher.putBytes(buffer);
+      }
+    } catch (InternalError e) {
+      // the file was truncated below a mapping while we read it
+      throw new IOException("File changed while hashing: " + path, e);
+    }
+    return hasher.hash().toString();
+  }
+}
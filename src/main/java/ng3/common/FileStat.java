@@ -0,0 +1,160 @@
+package ng3.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+/**
+ * The attributes of a file as read by a single stat call. On systems without the 'unix' attribute view, inode,
+ * device and ownership are not available and the change time falls back to the modification time.
+ */
+public class FileStat {
+  private static final String UNIX_ATTRIBUTES = "unix:size,lastModifiedTime,ctime,isRegularFile,isDirectory,isSymbolicLink,ino,dev,nlink,uid,gid,mode";
+  private static volatile boolean unixSupported = true;
+  private final Type type;
+  private final long size;
+  private final FileTime lastModifiedTime;
+  private final FileTime changeTime;
+  private final boolean unix;
+  private final long device;
+  private final long inode;
+  private final int links;
+  private final int uid;
+  private final int gid;
+  private final int mode;
+
+  private FileStat(Type type, long size, FileTime lastModifiedTime, FileTime changeTime, boolean unix, long device, long inode, int links, int uid, int gid, int mode) {
+    this.type = type;
+    this.size = size;
+    this.lastModifiedTime = lastModifiedTime;
+    this.changeTime = changeTime;
+    this.unix = unix;
+    this.device = device;
+    this.inode = inode;
+    this.links = links;
+    this.uid = uid;
+    this.gid = gid;
+    this.mode = mode;
+  }
+
+  public static FileStat read(Path path, boolean followLinks) throws IOException {
+    LinkOption[] options = followLinks ? new LinkOption[0] : new LinkOption[] { LinkOption.NOFOLLOW_LINKS };
+
+    if (unixSupported) {
+      try {
+        Map<String, Object> attributes = Files.readAttributes(path, UNIX_ATTRIBUTES, options);
+        return new FileStat(
+                typeOf((boolean) attributes.get("isRegularFile"), (boolean) attributes.get("isDirectory"), (boolean) attributes.get("isSymbolicLink")),
+                (long) attributes.get("size"),
+                (FileTime) attributes.get("lastModifiedTime"),
+                (FileTime) attributes.get("ctime"),
+                true,
+                (long) attributes.get("dev"),
+                (long) attributes.get("ino"),
+                (int) attributes.get("nlink"),
+                (int) attributes.get("uid"),
+                (int) attributes.get("gid"),
+                (int) attributes.get("mode"));
+      } catch (IllegalArgumentException | UnsupportedOperationException e) {
+        // 'unix' view not available on this system, don't try it again
+        unixSupported = false;
+      }
+    }
+
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, options);
+    return new FileStat(
+            typeOf(attributes.isRegularFile(), attributes.isDirectory(), attributes.isSymbolicLink()),
+            attributes.size(),
+            attributes.lastModifiedTime(),
+            attributes.lastModifiedTime(),
+            false, 0, 0, 1, 0, 0, 0);
+  }
+
+  private static Type typeOf(boolean regularFile, boolean directory, boolean symbolicLink) {
+    if (regularFile) {
+      return Type.FILE;
+    } else if (directory) {
+      return Type.DIRECTORY;
+    } else if (symbolicLink) {
+      return Type.SYMLINK;
+    }
+    return Type.OTHER;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public boolean isFile() {
+    return type == Type.FILE;
+  }
+
+  public boolean isDirectory() {
+    return type == Type.DIRECTORY;
+  }
+
+  public boolean isSymlink() {
+    return type == Type.SYMLINK;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public FileTime getLastModifiedTime() {
+    return lastModifiedTime;
+  }
+
+  public FileTime getChangeTime() {
+    return changeTime;
+  }
+
+  public boolean hasUnixAttributes() {
+    return unix;
+  }
+
+  public long getDevice() {
+    return device;
+  }
+
+  public long getInode() {
+    return inode;
+  }
+
+  public int getLinks() {
+    return links;
+  }
+
+  // identifies the file on the system for as long as it exists, null without unix attributes
+  public String getInodeKey() {
+    return unix ? device + ":" + inode : null;
+  }
+
+  // the same for every path linking to the file, null for a file with a single link or without unix attributes
+  public String getHardlinkKey() {
+    return unix && links > 1 ? device + ":" + inode : null;
+  }
+
+  public int getUid() {
+    return uid;
+  }
+
+  public int getGid() {
+    return gid;
+  }
+
+  public int getMode() {
+    return mode;
+  }
+
+  public enum Type {
+    FILE,
+    DIRECTORY,
+    SYMLINK,
+    OTHER
+  }
+}
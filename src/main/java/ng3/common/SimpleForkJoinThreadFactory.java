@@ -0,0 +1,43 @@
+package ng3.common;
+
+import org.slf4j.MDC;
+
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SimpleForkJoinThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+  private final String prefix;
+  private final AtomicInteger counter = new AtomicInteger(1);
+  private final Map<String, String> mdcContext;
+
+  public SimpleForkJoinThreadFactory(String prefix) {
+    this.prefix = prefix;
+    mdcContext = MDC.getCopyOfContextMap();
+  }
+
+  @Override
+  public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+    WorkerThread t = new WorkerThread(pool, mdcContext);
+    t.setName(String.format("%s-%d", prefix, counter.getAndIncrement()));
+    return t;
+  }
+
+  private static class WorkerThread extends ForkJoinWorkerThread {
+    private final Map<String, String> mdcContext;
+
+    private WorkerThread(ForkJoinPool pool, Map<String, String> mdcContext) {
+      super(pool);
+      this.mdcContext = mdcContext;
+    }
+
+    @Override
+    protected void onStart() {
+      super.onStart();
+      if (mdcContext != null) {
+        MDC.setContextMap(mdcContext);
+      }
+    }
+  }
+}
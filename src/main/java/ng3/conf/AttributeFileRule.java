@@ -0,0 +1,28 @@
+package ng3.conf;
+
+import ng3.common.FileStat;
+import s5lab.configuration.FileRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A rule that decides on the attributes the walker has already read, instead of asking the filesystem itself. For a
+ * symlink the rule is asked twice: first with the attributes of the link, then with those of its target.
+ */
+public interface AttributeFileRule extends FileRule {
+  boolean accept(Path path, FileStat stat);
+
+  // for callers without attributes at hand, costs the stat calls the walker would otherwise have made
+  @Override
+  default boolean accept(File f) {
+    Path path = f.toPath();
+    try {
+      FileStat stat = FileStat.read(path, false);
+      return accept(path, stat) && (!stat.isSymlink() || accept(path, FileStat.read(path, true)));
+    } catch (IOException e) {
+      return true;
+    }
+  }
+}
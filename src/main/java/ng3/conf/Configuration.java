@@ -13,14 +13,18 @@ public class Configuration {
   private final Integer versioningIntervalInMinutes;
   private final BackupDriver backupDriver;
   private final Map<String, char[]> secrets;
+  private final ScannerConfiguration scanner;
+  private final List<DeviceConfiguration> devices;
 
-  public Configuration(List<DirectoryConfiguration> directories, DatabaseConfiguration database, int intervalInMinutes, Integer versioningIntervalInMinutes, BackupDriver backupDriver, Map<String, char[]> secrets) {
+  public Configuration(List<DirectoryConfiguration> directories, DatabaseConfiguration database, int intervalInMinutes, Integer versioningIntervalInMinutes, BackupDriver backupDriver, Map<String, char[]> secrets, ScannerConfiguration scanner, List<DeviceConfiguration> devices) {
     this.directories = Collections.unmodifiableList(directories);
     this.database = database;
     this.intervalInMinutes = intervalInMinutes;
     this.versioningIntervalInMinutes = versioningIntervalInMinutes;
     this.backupDriver = backupDriver;
     this.secrets = secrets;
+    this.scanner = scanner;
+    this.devices = Collections.unmodifiableList(devices);
   }
 
   public List<DirectoryConfiguration> getDirectories() {
@@ -46,4 +50,12 @@ public class Configuration {
   public Integer getVersioningIntervalInMinutes() {
     return versioningIntervalInMinutes;
   }
+
+  public ScannerConfiguration getScanner() {
+    return scanner;
+  }
+
+  public List<DeviceConfiguration> getDevices() {
+    return devices;
+  }
 }
@@ -2,9 +2,11 @@ package ng3.conf;
 
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.jsontype.NamedType;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import s5lab.configuration.ExcludeSymlinksFileRule;
 import s5lab.configuration.FileRule;
 
 import java.io.File;
@@ -51,17 +53,25 @@ public class ConfigurationParser {
     for (DirectoryConfiguration directoryConfiguration : parsedConf.getDirectories()) {
       List<FileRule> fileRules = new ArrayList<>();
       if (directoryConfiguration.getRules() != null) {
-        fileRules.addAll(directoryConfiguration.getRules());
+        directoryConfiguration.getRules().forEach(rule -> fileRules.add(upgradeRule(rule)));
       }
       if (parsedConf.getGlobalRules() != null) {
-        fileRules.addAll(parsedConf.getGlobalRules());
+        parsedConf.getGlobalRules().forEach(rule -> fileRules.add(upgradeRule(rule)));
       }
       directoryConfigurations.add(new DirectoryConfiguration(
               directoryConfiguration.getDirectory(),
               fileRules,
               directoryConfiguration.getStoreAs(),
               directoryConfiguration.getFileVersioning(),
-              directoryConfiguration.getDeletedFileVersioning()
+              directoryConfiguration.getDeletedFileVersioning(),
+              directoryConfiguration.getScanMode(),
+              directoryConfiguration.getParallelism(),
+              directoryConfiguration.isWatch(),
+              directoryConfiguration.getDeleteDetection(),
+              directoryConfiguration.isVerifyContent(),
+              directoryConfiguration.getSettleTime(),
+              directoryConfiguration.getMinScanInterval(),
+              directoryConfiguration.getMaxScanInterval()
       ));
     }
 
@@ -89,7 +99,9 @@ public class ConfigurationParser {
             parsedConf.getIntervalInMinutes(),
             parsedConf.getVersioningIntervalInMinutes(),
             parsedConf.getBackupDriver(),
-            parseSecrets(parsedConf.getSecrets()));
+            parseSecrets(parsedConf.getSecrets()),
+            parsedConf.getScanner() == null ? new ScannerConfiguration(null, null, null, null, null) : parsedConf.getScanner(),
+            parsedConf.getDevices() == null ? Collections.emptyList() : parsedConf.getDevices());
   }
 
   private Map<String, char[]> parseSecrets(Map<String, String> secrets) throws IOException {
@@ -120,6 +132,11 @@ public class ConfigurationParser {
     return FileUtils.readFileToString(file, Charset.defaultCharset()).toCharArray();
   }
 
+  // rules with an attribute-aware replacement in ng3 keep their name in the configuration
+  private FileRule upgradeRule(FileRule rule) {
+    return rule instanceof ExcludeSymlinksFileRule ? new ExcludeSymlinksRule() : rule;
+  }
+
   private ObjectMapper getObjectMapper(Format format) throws IOException {
     ObjectMapper objectMapper;
     switch (format) {
@@ -135,6 +152,9 @@ public class ConfigurationParser {
         throw new IOException("Unsupported format: " + format);
     }
     objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, true);
+    objectMapper.registerSubtypes(
+            new NamedType(ExcludeLargeFilesRule.class, ExcludeLargeFilesRule.INFORMAL_NAME),
+            new NamedType(ExcludeOldFilesRule.class, ExcludeOldFilesRule.INFORMAL_NAME));
     return objectMapper;
   }
 
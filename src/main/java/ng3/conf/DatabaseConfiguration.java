@@ -17,7 +17,7 @@ public class DatabaseConfiguration {
         minimumPoolIdle = 0;
         maximumPoolSize = Integer.parseInt(poolSizeDef);
       } else if (poolSizeDef.matches("^\\d+-\\d+$")) {
-        String[] split = poolSizeDef.split(poolSizeDef);
+        String[] split = poolSizeDef.split("-");
         minimumPoolIdle = Integer.parseInt(split[0]);
         maximumPoolSize = Integer.parseInt(split[1]);
       } else {
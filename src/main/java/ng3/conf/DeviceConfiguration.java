@@ -0,0 +1,48 @@
+package ng3.conf;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.File;
+
+/**
+ * Concurrency limits for the device holding the given path. Every backup directory on the same device shares them.
+ * A limit that is not set, and every device that is not configured, is unlimited.
+ */
+public class DeviceConfiguration {
+  private final File path;
+  private final Integer scanConcurrency;
+  private final Integer readConcurrency;
+
+  @JsonCreator
+  public DeviceConfiguration(
+          @JsonProperty("path") File path,
+          @JsonProperty("scan-concurrency") Integer scanConcurrency,
+          @JsonProperty("read-concurrency") Integer readConcurrency) {
+    if (path == null) {
+      throw new IllegalArgumentException("'path' is required for a device");
+    }
+    if (scanConcurrency != null && scanConcurrency < 1) {
+      throw new IllegalArgumentException("'scan-concurrency' must be at least 1");
+    }
+    if (readConcurrency != null && readConcurrency < 1) {
+      throw new IllegalArgumentException("'read-concurrency' must be at least 1");
+    }
+
+    this.path = path;
+    this.scanConcurrency = scanConcurrency;
+    this.readConcurrency = readConcurrency;
+  }
+
+  public File getPath() {
+    return path;
+  }
+
+  public Integer getScanConcurrency() {
+    return scanConcurrency;
+  }
+
+  public Integer getReadConcurrency() {
+    return readConcurrency;
+  }
+}
@@ -2,6 +2,7 @@ package ng3.conf;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import s5lab.configuration.FileRule;
 
 import java.io.File;
@@ -11,9 +12,18 @@ import java.util.List;
 public class DirectoryConfiguration {
   private final File directory;
   private final List<FileRule> rules;
+  private final FileRuleMatcher ruleMatcher;
   private final String storeAs;
   private final FileVersioningConfiguration fileVersioning;
   private final DeletedFileVersioningConfiguration deletedFileVersioning;
+  private final ScanMode scanMode;
+  private final int parallelism;
+  private final boolean watch;
+  private final DeleteDetection deleteDetection;
+  private final boolean verifyContent;
+  private final int settleTime;
+  private final int minScanInterval;
+  private final Integer maxScanInterval;
 
   @JsonCreator
   public DirectoryConfiguration(
@@ -21,12 +31,39 @@ public class DirectoryConfiguration {
           @JsonProperty("rules") List<FileRule> rules,
           @JsonProperty("store-as") String storeAs,
           @JsonProperty("files") FileVersioningConfiguration fileVersioning,
-          @JsonProperty("deleted-files") DeletedFileVersioningConfiguration deletedFileVersioning) {
+          @JsonProperty("deleted-files") DeletedFileVersioningConfiguration deletedFileVersioning,
+          @JsonProperty("scan-mode") ScanMode scanMode,
+          @JsonProperty("parallelism") Integer parallelism,
+          @JsonProperty("watch") Boolean watch,
+          @JsonProperty("delete-detection") DeleteDetection deleteDetection,
+          @JsonProperty("verify-content") Boolean verifyContent,
+          @JsonProperty("settle-time") Integer settleTime,
+          @JsonProperty("min-scan-interval") @JsonDeserialize(using = IntervalToMinutesDeserializer.class) Integer minScanInterval,
+          @JsonProperty("max-scan-interval") @JsonDeserialize(using = IntervalToMinutesDeserializer.class) Integer maxScanInterval) {
+    if (parallelism != null && parallelism < 1) {
+      throw new IllegalArgumentException("'parallelism' must be at least 1");
+    }
+    if (settleTime != null && settleTime < 0) {
+      throw new IllegalArgumentException("'settle-time' must not be negative");
+    }
+    if (minScanInterval != null && maxScanInterval != null && minScanInterval > maxScanInterval) {
+      throw new IllegalArgumentException("'min-scan-interval' must not be greater than 'max-scan-interval'");
+    }
+
     this.directory = directory;
     this.rules = Collections.unmodifiableList(rules == null ? Collections.emptyList() : rules);
+    ruleMatcher = FileRuleMatcher.compile(this.rules);
     this.storeAs = storeAs;
     this.fileVersioning = fileVersioning;
     this.deletedFileVersioning = deletedFileVersioning;
+    this.scanMode = scanMode == null ? ScanMode.LOOKUP : scanMode;
+    this.parallelism = parallelism == null ? 1 : parallelism;
+    this.watch = watch != null && watch;
+    this.deleteDetection = deleteDetection == null ? DeleteDetection.GENERATION : deleteDetection;
+    this.verifyContent = verifyContent != null && verifyContent;
+    this.settleTime = settleTime == null ? 0 : settleTime;
+    this.minScanInterval = minScanInterval == null ? 0 : minScanInterval;
+    this.maxScanInterval = maxScanInterval;
   }
 
   public File getDirectory() {
@@ -37,6 +74,10 @@ public class DirectoryConfiguration {
     return rules;
   }
 
+  public FileRuleMatcher getRuleMatcher() {
+    return ruleMatcher;
+  }
+
   public String getStoreAs() {
     return storeAs;
   }
@@ -48,4 +89,81 @@ public class DirectoryConfiguration {
   public DeletedFileVersioningConfiguration getDeletedFileVersioning() {
     return deletedFileVersioning;
   }
+
+  public ScanMode getScanMode() {
+    return scanMode;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public boolean isWatch() {
+    return watch;
+  }
+
+  public DeleteDetection getDeleteDetection() {
+    return deleteDetection;
+  }
+
+  public boolean isVerifyContent() {
+    return verifyContent;
+  }
+
+  // seconds a file must go unmodified before it is backed up, 0 to back up files as soon as they are found
+  public int getSettleTime() {
+    return settleTime;
+  }
+
+  // minutes, full scans of an unwatched directory adapt their interval to how often it changes within these bounds
+  public int getMinScanInterval() {
+    return minScanInterval;
+  }
+
+  // minutes, null to scan in full every run
+  public Integer getMaxScanInterval() {
+    return maxScanInterval;
+  }
+
+  public enum ScanMode {
+    LOOKUP("lookup"), // query the catalog for every scanned file
+    SNAPSHOT("snapshot"); // load the catalog for the directory once and diff against it in memory
+
+    private final String value;
+
+    ScanMode(String value) {
+      this.value = value;
+    }
+
+    @JsonCreator
+    public static ScanMode fromValue(String value) {
+      for (ScanMode scanMode : ScanMode.values()) {
+        if (scanMode.value.equals(value)) {
+          return scanMode;
+        }
+      }
+      throw new IllegalArgumentException("Invalid value for scan-mode: '" + value + "'");
+    }
+  }
+
+  public enum DeleteDetection {
+    GENERATION("generation"), // stamp every file seen, then mark everything not stamped in one statement
+    STAT("stat"); // check files in directories with a changed mtime for existence
+
+    private final String value;
+
+    DeleteDetection(String value) {
+      this.value = value;
+    }
+
+    @JsonCreator
+    public static DeleteDetection fromValue(String value) {
+      for (DeleteDetection deleteDetection : DeleteDetection.values()) {
+        if (deleteDetection.value.equals(value)) {
+          return deleteDetection;
+        }
+      }
+      throw new IllegalArgumentException("Invalid value for delete-detection: '" + value + "'");
+    }
+  }
 }
@@ -0,0 +1,30 @@
+package ng3.conf;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import ng3.common.FileStat;
+
+import java.nio.file.Path;
+
+public class ExcludeLargeFilesRule implements AttributeFileRule {
+  public static final String INFORMAL_NAME = "exclude-large-files";
+  private final long maxSizeInBytes;
+
+  @JsonCreator
+  public ExcludeLargeFilesRule(@JsonProperty("max-size") @JsonDeserialize(using = SizeToBytesDeserializer.class) Long maxSizeInBytes) {
+    if (maxSizeInBytes == null) {
+      throw new IllegalArgumentException("'max-size' is required for " + INFORMAL_NAME);
+    }
+    this.maxSizeInBytes = maxSizeInBytes;
+  }
+
+  public long getMaxSizeInBytes() {
+    return maxSizeInBytes;
+  }
+
+  @Override
+  public boolean accept(Path path, FileStat stat) {
+    return !stat.isFile() || stat.getSize() <= maxSizeInBytes;
+  }
+}
@@ -0,0 +1,34 @@
+package ng3.conf;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import ng3.common.FileStat;
+import ng3.common.TimeUtilsNG;
+
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+
+public class ExcludeOldFilesRule implements AttributeFileRule {
+  public static final String INFORMAL_NAME = "exclude-old-files";
+  private final ZonedDateTime cutoff;
+  private final long cutoffInMillis;
+
+  @JsonCreator
+  public ExcludeOldFilesRule(@JsonProperty("cutoff") String cutoff) {
+    if (cutoff == null) {
+      throw new IllegalArgumentException("'cutoff' is required for " + INFORMAL_NAME);
+    }
+    this.cutoff = TimeUtilsNG.at(cutoff).toZonedDateTime();
+    cutoffInMillis = TimeUtilsNG.at(this.cutoff).toEpochMilli();
+  }
+
+  public ZonedDateTime getCutoff() {
+    return cutoff;
+  }
+
+  // same notion of last modified as the catalog, ctime where available
+  @Override
+  public boolean accept(Path path, FileStat stat) {
+    return !stat.isFile() || stat.getChangeTime().toMillis() > cutoffInMillis;
+  }
+}
@@ -0,0 +1,16 @@
+package ng3.conf;
+
+import ng3.common.FileStat;
+
+import java.nio.file.Path;
+
+/**
+ * Replaces {@link s5lab.configuration.ExcludeSymlinksFileRule} for 'exclude-symlinks', deciding on the link attributes
+ * the walker reads anyway.
+ */
+public class ExcludeSymlinksRule implements AttributeFileRule {
+  @Override
+  public boolean accept(Path path, FileStat stat) {
+    return !stat.isSymlink();
+  }
+}
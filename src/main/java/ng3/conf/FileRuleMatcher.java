@@ -0,0 +1,206 @@
+package ng3.conf;
+
+import ng3.common.FileStat;
+import s5lab.configuration.ExcludeDirectoryFileRule;
+import s5lab.configuration.ExcludeFilenamePrefixFileRule;
+import s5lab.configuration.ExcludeHiddenFilesFileRule;
+import s5lab.configuration.ExcludeLongFilenamesRule;
+import s5lab.configuration.ExcludeSymlinksFileRule;
+import s5lab.configuration.FileRule;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A rule list compiled into a single matcher. Accepts exactly what the rules would accept one by one, but checks the
+ * cheap, name-only rules first: the shortest filename limit, hidden files, filename prefixes in a character trie and
+ * excluded directories in a path segment trie. Rules unknown to the compiler are evaluated after those, in their
+ * configured order. {@link AttributeFileRule}s are left for {@link #accept(Path, FileStat)}, once the walker has read
+ * the attributes.
+ * <p>
+ * Every rejection is counted against the rule that made it, the first matching rule in evaluation order.
+ */
+public class FileRuleMatcher {
+  private static final boolean UNIX_HIDDEN_FILES = File.separatorChar == '/';
+  private final Map<FileRule, LongAdder> hits = new LinkedHashMap<>();
+  private final PathTrie directories = new PathTrie();
+  private final PrefixTrie prefixes = new PrefixTrie();
+  private final FileRule hiddenRule;
+  private final FileRule longFilenameRule;
+  private final int maxLength;
+  private final List<FileRule> otherRules = new ArrayList<>();
+  private final List<AttributeFileRule> attributeRules = new ArrayList<>();
+
+  private FileRuleMatcher(List<FileRule> rules) {
+    FileRule hiddenRule = null;
+    FileRule longFilenameRule = null;
+    int maxLength = Integer.MAX_VALUE;
+    List<FileRule> statRules = new ArrayList<>();
+
+    for (FileRule rule : rules) {
+      hits.put(rule, new LongAdder());
+      if (rule instanceof ExcludeDirectoryFileRule && ((ExcludeDirectoryFileRule) rule).getDirectory() != null) {
+        directories.add(segments(((ExcludeDirectoryFileRule) rule).getDirectory().toString()), rule);
+      } else if (rule instanceof ExcludeFilenamePrefixFileRule && ((ExcludeFilenamePrefixFileRule) rule).getPrefix() != null) {
+        prefixes.add(((ExcludeFilenamePrefixFileRule) rule).getPrefix(), rule);
+      } else if (rule instanceof ExcludeHiddenFilesFileRule && UNIX_HIDDEN_FILES) {
+        hiddenRule = hiddenRule == null ? rule : hiddenRule;
+      } else if (rule instanceof ExcludeLongFilenamesRule) {
+        if (((ExcludeLongFilenamesRule) rule).getMaxLength() < maxLength) {
+          maxLength = ((ExcludeLongFilenamesRule) rule).getMaxLength();
+          longFilenameRule = rule;
+        }
+      } else if (rule instanceof AttributeFileRule) {
+        attributeRules.add((AttributeFileRule) rule);
+      } else if (rule instanceof ExcludeSymlinksFileRule) {
+        statRules.add(rule);
+      } else {
+        otherRules.add(rule);
+      }
+    }
+    otherRules.addAll(statRules);
+
+    this.hiddenRule = hiddenRule;
+    this.longFilenameRule = longFilenameRule;
+    this.maxLength = maxLength;
+  }
+
+  public static FileRuleMatcher compile(List<FileRule> rules) {
+    return new FileRuleMatcher(rules);
+  }
+
+  public boolean accept(Path path) {
+    String fullPath = path.toString();
+    if (fullPath.length() > maxLength) {
+      return reject(longFilenameRule);
+    }
+
+    Path fileName = path.getFileName();
+    String name = fileName == null ? "" : fileName.toString();
+    if (hiddenRule != null && name.startsWith(".")) {
+      return reject(hiddenRule);
+    }
+
+    FileRule rule = prefixes.match(name);
+    if (rule == null) {
+      rule = directories.match(fullPath);
+    }
+    if (rule != null) {
+      return reject(rule);
+    }
+
+    if (!otherRules.isEmpty()) {
+      File file = path.toFile();
+      for (FileRule otherRule : otherRules) {
+        if (!otherRule.accept(file)) {
+          return reject(otherRule);
+        }
+      }
+    }
+    return true;
+  }
+
+  public boolean accept(Path path, FileStat stat) {
+    for (AttributeFileRule attributeRule : attributeRules) {
+      if (!attributeRule.accept(path, stat)) {
+        return reject(attributeRule);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the rejections per rule since the last call, in configured order.
+   */
+  public Map<FileRule, Long> drainHits() {
+    Map<FileRule, Long> result = new LinkedHashMap<>();
+    hits.forEach((rule, counter) -> result.put(rule, counter.sumThenReset()));
+    return result;
+  }
+
+  private boolean reject(FileRule rule) {
+    hits.get(rule).increment();
+    return false;
+  }
+
+  // "/a/b" -> "", "a", "b", the same split as in PathTrie.match
+  private static List<String> segments(String path) {
+    List<String> segments = new ArrayList<>();
+    int start = 0;
+    while (start < path.length()) {
+      int end = path.indexOf(File.separatorChar, start);
+      if (end < 0) {
+        end = path.length();
+      }
+      segments.add(path.substring(start, end));
+      start = end + 1;
+    }
+    return segments;
+  }
+
+  private static class PathTrie {
+    private final Map<String, PathTrie> children = new HashMap<>();
+    private FileRule rule;
+
+    private void add(List<String> segments, FileRule rule) {
+      PathTrie node = this;
+      for (String segment : segments) {
+        node = node.children.computeIfAbsent(segment, k -> new PathTrie());
+      }
+      if (node.rule == null) {
+        node.rule = rule;
+      }
+    }
+
+    // the rule of the path itself or its closest excluded ancestor, without splitting the path up front
+    private FileRule match(String path) {
+      PathTrie node = this;
+      int start = 0;
+      while (node.rule == null && start < path.length()) {
+        int end = path.indexOf(File.separatorChar, start);
+        if (end < 0) {
+          end = path.length();
+        }
+        node = node.children.get(path.substring(start, end));
+        if (node == null) {
+          return null;
+        }
+        start = end + 1;
+      }
+      return node.rule;
+    }
+  }
+
+  private static class PrefixTrie {
+    private final Map<Character, PrefixTrie> children = new HashMap<>();
+    private FileRule rule;
+
+    private void add(String prefix, FileRule rule) {
+      PrefixTrie node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.children.computeIfAbsent(prefix.charAt(i), k -> new PrefixTrie());
+      }
+      if (node.rule == null) {
+        node.rule = rule;
+      }
+    }
+
+    // the rule of the shortest prefix of the name
+    private FileRule match(String name) {
+      PrefixTrie node = this;
+      for (int i = 0; i < name.length() && node.rule == null; i++) {
+        node = node.children.get(name.charAt(i));
+        if (node == null) {
+          return null;
+        }
+      }
+      return node.rule;
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package ng3.conf;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class IntervalToMillisDeserializer extends JsonDeserializer<Long> {
+  private final static Pattern pattern = Pattern.compile("(?<num>[0-9]+)(?<classifier>ms|[smh])");
+
+  @Override
+  public Long deserialize(JsonParser jsonParser, DeserializationContext deserializationContext) throws IOException {
+    String interval = jsonParser.getText();
+    Matcher m = pattern.matcher(interval);
+    if (!m.matches()) {
+      throw new IOException("Invalid value for interval: '" + interval + "'");
+    }
+
+    long num = Long.parseLong(m.group("num"));
+    String classifier = m.group("classifier");
+
+    switch (classifier) {
+      case "ms":
+        return num;
+
+      case "s":
+        return num * 1000;
+
+      case "m":
+        return num * 1000 * 60;
+
+      case "h":
+        return num * 1000 * 60 * 60;
+
+      default:
+        throw new IOException("Unknown classifier in interval: '" + interval + "'");
+    }
+  }
+}
@@ -16,6 +16,8 @@ class ParsedConfiguration {
   private Integer versioningIntervalInMinutes;
   private BackupDriver backupDriver;
   private Map<String, String> secrets;
+  private ScannerConfiguration scanner;
+  private List<DeviceConfiguration> devices;
 
   public int getIntervalInMinutes() {
     return intervalInMinutes;
@@ -78,4 +80,20 @@ class ParsedConfiguration {
   public void setVersioningIntervalInMinutes(Integer versioningIntervalInMinutes) {
     this.versioningIntervalInMinutes = versioningIntervalInMinutes;
   }
+
+  public ScannerConfiguration getScanner() {
+    return scanner;
+  }
+
+  public void setScanner(ScannerConfiguration scanner) {
+    this.scanner = scanner;
+  }
+
+  public List<DeviceConfiguration> getDevices() {
+    return devices;
+  }
+
+  public void setDevices(List<DeviceConfiguration> devices) {
+    this.devices = devices;
+  }
 }
@@ -0,0 +1,61 @@
+package ng3.conf;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import ng3.Settings;
+
+public class ScannerConfiguration {
+  private final int batchSize;
+  private final long flushIntervalInMs;
+  private final int queueSize;
+  private final int writerThreads;
+  private final int hashThreads;
+
+  @JsonCreator
+  public ScannerConfiguration(
+          @JsonProperty("batch-size") Integer batchSize,
+          @JsonProperty("flush-interval") @JsonDeserialize(using = IntervalToMillisDeserializer.class) Long flushIntervalInMs,
+          @JsonProperty("queue-size") Integer queueSize,
+          @JsonProperty("writer-threads") Integer writerThreads,
+          @JsonProperty("hash-threads") Integer hashThreads) {
+    if (batchSize != null && batchSize < 1) {
+      throw new IllegalArgumentException("'batch-size' must be at least 1");
+    }
+    if (queueSize != null && queueSize < 1) {
+      throw new IllegalArgumentException("'queue-size' must be at least 1");
+    }
+    if (writerThreads != null && writerThreads < 1) {
+      throw new IllegalArgumentException("'writer-threads' must be at least 1");
+    }
+    if (hashThreads != null && hashThreads < 1) {
+      throw new IllegalArgumentException("'hash-threads' must be at least 1");
+    }
+
+    this.batchSize = batchSize == null ? Settings.CATALOG_BATCH_SIZE : batchSize;
+    this.flushIntervalInMs = flushIntervalInMs == null ? Settings.CATALOG_FLUSH_INTERVAL_IN_MS : flushIntervalInMs;
+    this.queueSize = queueSize == null ? Settings.CATALOG_QUEUE_SIZE : queueSize;
+    this.writerThreads = writerThreads == null ? Settings.CATALOG_WRITER_THREADS : writerThreads;
+    this.hashThreads = hashThreads == null ? Settings.CONTENT_HASH_THREADS : hashThreads;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public long getFlushIntervalInMs() {
+    return flushIntervalInMs;
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  public int getWriterThreads() {
+    return writerThreads;
+  }
+
+  public int getHashThreads() {
+    return hashThreads;
+  }
+}
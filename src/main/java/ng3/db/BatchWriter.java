@@ -0,0 +1,82 @@
+package ng3.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers updates in memory and writes them as JDBC batches in a single transaction. Statements are executed in the
+ * order they were added, so an update that depends on an earlier insert in the same batch will see it.
+ * <p>
+ * Flushed inside a session of the thread, the batch becomes part of the work of that session and is committed when
+ * its owner commits. A batch that fails rolls the whole session back.
+ */
+public class BatchWriter {
+  private final DbClient dbClient;
+  private final List<PendingStatement> pending = new ArrayList<>();
+
+  BatchWriter(DbClient dbClient) {
+    this.dbClient = dbClient;
+  }
+
+  public void add(String sql, StatementBinder binder) {
+    pending.add(new PendingStatement(sql, binder));
+  }
+
+  public int size() {
+    return pending.size();
+  }
+
+  public int flush() {
+    if (pending.isEmpty()) {
+      return 0;
+    }
+
+    int results = 0;
+    QueryBuilder query = null;
+    boolean joined = dbClient.currentSession() != null;
+    try (DbSession session = dbClient.openSession()) {
+      try {
+        String currentSql = null;
+        for (PendingStatement statement : pending) {
+          if (!statement.sql.equals(currentSql)) {
+            if (query != null) {
+              results += query.executeBatch();
+            }
+            currentSql = statement.sql;
+            query = session.buildQuery(statement.sql);
+          }
+          statement.binder.bind(query.withParam());
+          query.addBatch();
+        }
+        results += query.executeBatch();
+        if (!joined) {
+          session.commit();
+        }
+      } catch (Throwable t) {
+        session.rollback();
+        throw t;
+      } finally {
+        if (query != null) {
+          query.abort();
+        }
+      }
+    } finally {
+      pending.clear();
+    }
+    return results;
+  }
+
+  public interface StatementBinder {
+    void bind(QueryBuilder.PreparedStatementWrapper statement);
+  }
+
+  private static class PendingStatement {
+    private final String sql;
+    private final StatementBinder binder;
+
+    private PendingStatement(String sql, StatementBinder binder) {
+      this.sql = sql;
+      this.binder = binder;
+    }
+  }
+}
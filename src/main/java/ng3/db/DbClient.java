@@ -6,15 +6,56 @@ import java.util.UUID;
 
 public class DbClient {
   private final DbHandler dbHandler;
+  private final PathDictionary pathDictionary = new PathDictionary(this);
+  private final ThreadLocal<DbSession> sessions = new ThreadLocal<>();
 
   DbClient(DbHandler dbHandler) {
     this.dbHandler = dbHandler;
   }
 
+  public PathDictionary getPathDictionary() {
+    return pathDictionary;
+  }
+
+  // runs on the session of the thread when it has one, on a connection of its own otherwise
   public QueryBuilder buildQuery(String sql) {
+    DbSession session = sessions.get();
+    if (session != null) {
+      return session.buildQuery(sql);
+    }
     return new QueryBuilder(dbHandler.getConnection()).withStatement(sql);
   }
 
+  /**
+   * Pins a connection to the calling thread until the returned session is closed, or joins the session the thread
+   * already has.
+   */
+  public DbSession openSession() {
+    DbSession session = sessions.get();
+    if (session != null) {
+      session.join();
+      return session;
+    }
+    session = new DbSession(this, dbHandler.getConnection());
+    sessions.set(session);
+    return session;
+  }
+
+  // null unless the thread has a session open
+  DbSession currentSession() {
+    return sessions.get();
+  }
+
+  void endSession(DbSession session) {
+    if (sessions.get() == session) {
+      sessions.remove();
+    }
+  }
+
+  public BatchWriter newBatchWriter() {
+    return new BatchWriter(this);
+  }
+
   public BackupPlan getBackupPlan(UUID planId) {
     BackupPlan plan = buildQuery("select plan_id, last_started, last_versioned from plan where plan_id=?")
             .withParam().uuidValue(1, planId)
@@ -10,16 +10,49 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 public class DbHandler implements AutoCloseable {
+  // raised by derby for a table, index or column that already exists
   private final Logger logger = LoggerFactory.getLogger(getClass());
   private final HikariDataSource dataSource;
   private final DbClient dbClient = new DbClient(this);
+  // each takes the schema from one version to the next, the first one from version 1 to 2
+  private final List<Migration> migrations = Arrays.asList(
+          c -> executeMigrationScript(c, "002-schema-version.sql"),
+          c -> executeMigrationScript(c, "003-scanned-directory.sql"),
+          c -> executeMigrationScript(c, "004-scan-generation.sql"),
+          c -> executeMigrationScript(c, "005-scan-checkpoint.sql"),
+          c -> executeMigrationScript(c, "006-content-hash.sql"),
+          c -> {
+            executeMigrationScript(c, "007-path-node.sql");
+            migratePathNodes(c);
+          },
+          c -> executeMigrationScript(c, "008-scan-history.sql"),
+          c -> executeMigrationScript(c, "009-hardlinks.sql"),
+          c -> executeMigrationScript(c, "010-moves.sql"),
+          c -> executeMigrationScript(c, "011-metadata-only.sql"),
+          c -> executeMigrationScript(c, "012-upload-index.sql"),
+          c -> {
+            executeMigrationScript(c, "013-compact-keys.sql");
+            restartFileKeys(c);
+          },
+          c -> executeMigrationScript(c, "014-claim-lease.sql"),
+          c -> executeMigrationScript(c, "015-generation-index.sql"),
+          c -> executeMigrationScript(c, "016-directory-path-index.sql"));
 
   public DbHandler(DatabaseConfiguration configuration) {
     this(configuration.getJdbcUrl(), configuration.getUsername(), configuration.getPassword(), configuration.getMinimumPoolIdle(), configuration.getMaximumPoolSize());
@@ -52,12 +85,59 @@ public class DbHandler implements AutoCloseable {
   }
 
   public boolean isInstalled() {
-    return getClient().buildQuery("select count(*) from sys.systables t join sys.sysschemas s on s.schemaid=t.schemaid where lower(s.schemaname)='app' and lower(t.tablename)='directory'")
-            .executeQueryForObject(rs -> rs.getInt(1)) > 0;
+    return hasTable("directory");
   }
 
   public void install() throws Exception {
     executeScript(Settings.CREATE_SCRIPT);
+    try (Connection c = getConnection()) {
+      recordVersion(c, getLatestVersion());
+    }
+  }
+
+  /**
+   * The version of the installed schema, 0 if there is none. Catalogs installed before versions were recorded are
+   * version 1.
+   */
+  public int getSchemaVersion() {
+    if (!isInstalled()) {
+      return 0;
+    }
+    if (!hasTable("schema_version")) {
+      return 1;
+    }
+    return getClient().buildQuery("select max(version) from schema_version")
+            .executeQueryForObject(rs -> rs.getInt(1));
+  }
+
+  public int getLatestVersion() {
+    return migrations.size() + 1;
+  }
+
+  /**
+   * Brings an installed schema up to the latest version. Every migration is applied in a transaction of its own,
+   * together with recording its version, so a failed migration is tried again from the start on the next run.
+   */
+  public void migrate() throws Exception {
+    int version = getSchemaVersion();
+    if (version > getLatestVersion()) {
+      throw new IllegalStateException("Database schema version " + version + " is newer than this version supports (" + getLatestVersion() + ")");
+    }
+
+    for (int next = version + 1; next <= getLatestVersion(); next++) {
+      logger.info("Migrating database to version {}", next);
+      try (Connection c = getConnection()) {
+        c.setAutoCommit(false);
+        try {
+          migrations.get(next - 2).apply(c);
+          recordVersion(c, next);
+          c.commit();
+        } catch (Throwable t) {
+          c.rollback();
+          throw t;
+        }
+      }
+    }
   }
 
   public void uninstall() throws Exception {
@@ -85,6 +165,141 @@ public class DbHandler implements AutoCloseable {
     }
   }
 
+  // runs in the transaction of the migration, an object that is already there fails it like any other error
+  private void executeMigrationScript(Connection c, String script) throws SQLException, IOException {
+    try (Statement s = c.createStatement()) {
+      for (String sql : readSqlScript(Settings.MIGRATION_SCRIPTS + script)) {
+        s.execute(sql);
+      }
+    }
+  }
+
+  // files used to keep their full filename, it is split into a path node for the directory and a name
+  private void migratePathNodes(Connection c) throws SQLException {
+    if (!hasColumn(c, "file", "filename")) {
+      return;
+    }
+
+    try (Statement select = c.createStatement();
+         PathNodes pathNodes = new PathNodes(c);
+         PreparedStatement updateFile = c.prepareStatement("update file set path_node_id=?, name=? where file_id=?")) {
+      select.setFetchSize(Settings.CATALOG_FETCH_SIZE);
+      try (ResultSet rs = select.executeQuery("select file_id, filename from file")) {
+        int pending = 0;
+        while (rs.next()) {
+          Path path = Paths.get(rs.getString(2));
+          updateFile.setLong(1, pathNodes.nodeId(path.getParent()));
+          updateFile.setString(2, path.getFileName().toString());
+          updateFile.setString(3, rs.getString(1));
+          updateFile.addBatch();
+          if (++pending == Settings.CATALOG_BATCH_SIZE) {
+            // the nodes first, the files refer to them
+            pathNodes.insertNode.executeBatch();
+            updateFile.executeBatch();
+            pending = 0;
+          }
+        }
+        pathNodes.insertNode.executeBatch();
+        updateFile.executeBatch();
+      }
+    }
+
+    try (Statement s = c.createStatement()) {
+      s.execute("alter table file drop column filename");
+      s.execute("alter table file add foreign key (path_node_id) references path_node (path_node_id)");
+      s.execute("create index file_path_node_name on file (path_node_id, name)");
+    }
+  }
+
+  /**
+   * The same tree the path dictionary builds, with the root directory as a node of its own. Nodes already in the table
+   * are reused and new ones are numbered after the highest existing id.
+   */
+  private static class PathNodes implements AutoCloseable {
+    private final Map<Path, Long> nodeIds = new HashMap<>();
+    private final PreparedStatement selectNode;
+    private final PreparedStatement insertNode;
+    private long lastId;
+
+    private PathNodes(Connection c) throws SQLException {
+      try (Statement s = c.createStatement(); ResultSet rs = s.executeQuery("select max(path_node_id) from path_node")) {
+        lastId = rs.next() ? rs.getLong(1) : 0;
+      }
+      selectNode = c.prepareStatement("select path_node_id from path_node where parent_id=? and name=?");
+      insertNode = c.prepareStatement("insert into path_node (path_node_id, parent_id, name) values (?, ?, ?)");
+    }
+
+    private long nodeId(Path directory) throws SQLException {
+      Long id = nodeIds.get(directory);
+      if (id == null) {
+        Path parent = directory.getParent();
+        long parentId = parent == null ? 0 : nodeId(parent);
+        String name = parent == null ? directory.toString() : directory.getFileName().toString();
+        selectNode.setLong(1, parentId);
+        selectNode.setString(2, name);
+        try (ResultSet rs = selectNode.executeQuery()) {
+          id = rs.next() ? rs.getLong(1) : null;
+        }
+        if (id == null) {
+          id = ++lastId;
+          insertNode.setLong(1, id);
+          insertNode.setLong(2, parentId);
+          insertNode.setString(3, name);
+          insertNode.addBatch();
+        }
+        nodeIds.put(directory, id);
+      }
+      return id;
+    }
+
+    @Override
+    public void close() throws SQLException {
+      try {
+        selectNode.close();
+      } finally {
+        insertNode.close();
+      }
+    }
+  }
+
+  // the keys copied over keep their values, new ones continue after them
+  private void restartFileKeys(Connection c) throws SQLException {
+    try (Statement s = c.createStatement()) {
+      long next;
+      try (ResultSet rs = s.executeQuery("select max(file_id) from file")) {
+        next = rs.next() ? rs.getLong(1) + 1 : 1;
+      }
+      s.execute("alter table file alter column file_id restart with " + next);
+    }
+  }
+
+  /**
+   * Called by the database while migrating to compact keys, it must be public and static.
+   */
+  public static byte[] uuidBytes(String uuid) {
+    return UuidBytes.toBytes(UUID.fromString(uuid));
+  }
+
+  private void recordVersion(Connection c, int version) throws SQLException {
+    try (PreparedStatement s = c.prepareStatement("insert into schema_version (version, applied_at) values (?, ?)")) {
+      s.setInt(1, version);
+      s.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+      s.executeUpdate();
+    }
+  }
+
+  private boolean hasTable(String table) {
+    return getClient().buildQuery("select count(*) from sys.systables t join sys.sysschemas s on s.schemaid=t.schemaid where lower(s.schemaname)='app' and lower(t.tablename)=?")
+            .withParam().stringValue(1, table)
+            .executeQueryForObject(rs -> rs.getInt(1)) > 0;
+  }
+
+  private boolean hasColumn(Connection c, String table, String column) throws SQLException {
+    try (ResultSet rs = c.getMetaData().getColumns(null, "APP", table.toUpperCase(), column.toUpperCase())) {
+      return rs.next();
+    }
+  }
+
   private List<String> readSqlScript(String resource) throws IOException {
     try (InputStream is = getClass().getResourceAsStream(resource)) {
       BufferedReader br = new BufferedReader(new InputStreamReader(is));
@@ -92,6 +307,9 @@ public class DbHandler implements AutoCloseable {
       StringBuffer sb = new StringBuffer();
       List<String> sqls = new ArrayList<>();
       while ((line = br.readLine()) != null) {
+        if (line.trim().startsWith("--")) {
+          continue;
+        }
         sb.append(line);
         if (line.endsWith(";")) {
           String sql = sb.toString();
@@ -102,4 +320,8 @@ public class DbHandler implements AutoCloseable {
       return sqls;
     }
   }
+
+  private interface Migration {
+    void apply(Connection c) throws SQLException, IOException;
+  }
 }
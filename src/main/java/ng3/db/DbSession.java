@@ -0,0 +1,140 @@
+package ng3.db;
+
+import ng3.Settings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A unit of work on one pinned connection. While it is open, every query its thread builds through {@link DbClient}
+ * runs on that connection, and statements are prepared once per SQL text and reused. Nothing is committed until
+ * {@link #commit()} is called; work left uncommitted when the session ends is rolled back, and logged as lost.
+ * <p>
+ * Opening a session on a thread that already has one joins it, and only closing the outermost one ends it. The
+ * connection is held until then, so a session must not stay open while waiting on other threads - the pool might only
+ * have the one connection. A statement is shared by every query with the same SQL, so a query must not be built again
+ * while its results are still being read.
+ */
+public class DbSession implements AutoCloseable {
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+  private final DbClient dbClient;
+  private final Connection connection;
+  private final Map<String, CachedStatement> statements;
+  private int depth = 1;
+  // set once anything but a query has been prepared since the last commit or rollback
+  private boolean uncommitted;
+
+  DbSession(DbClient dbClient, Connection connection) {
+    this.dbClient = dbClient;
+    this.connection = connection;
+    try {
+      connection.setAutoCommit(false);
+    } catch (SQLException e) {
+      closeConnection();
+      throw new DatabaseException(e);
+    }
+
+    // least recently used first, the statements of a long session are bounded however much SQL it runs
+    statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+        if (size() > Settings.DB_SESSION_STATEMENT_CACHE_SIZE) {
+          closeStatement(eldest.getValue().statement);
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  public QueryBuilder buildQuery(String sql) {
+    CachedStatement cached = statements.get(sql);
+    if (cached == null) {
+      try {
+        cached = new CachedStatement(connection.prepareStatement(sql), !sql.trim().toLowerCase().startsWith("select"));
+      } catch (SQLException e) {
+        throw new DatabaseException(e);
+      }
+      statements.put(sql, cached);
+    }
+    if (cached.writes) {
+      uncommitted = true;
+    }
+    return new QueryBuilder(cached.statement);
+  }
+
+  public void commit() {
+    try {
+      connection.commit();
+      uncommitted = false;
+    } catch (SQLException e) {
+      throw new DatabaseException(e);
+    }
+  }
+
+  public void rollback() {
+    try {
+      connection.rollback();
+      uncommitted = false;
+    } catch (SQLException e) {
+      logger.error("Could not rollback session", e);
+    }
+  }
+
+  void join() {
+    depth++;
+  }
+
+  @Override
+  public void close() {
+    if (--depth > 0) {
+      return;
+    }
+
+    dbClient.endSession(this);
+    if (uncommitted) {
+      logger.warn("Session closed with uncommitted changes, they are rolled back", new IllegalStateException("Uncommitted session"));
+    }
+    rollback();
+    statements.values().forEach(v -> closeStatement(v.statement));
+    statements.clear();
+    try {
+      connection.setAutoCommit(true);
+    } catch (SQLException e) {
+      logger.error("Could not restore auto commit", e);
+    }
+    closeConnection();
+  }
+
+  private void closeStatement(PreparedStatement statement) {
+    try {
+      statement.close();
+    } catch (SQLException e) {
+      logger.error("Could not close statement", e);
+    }
+  }
+
+  private void closeConnection() {
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      logger.error("Could not close connection", e);
+    }
+  }
+
+  // whether it writes is worked out once, when it is prepared
+  private static class CachedStatement {
+    private final PreparedStatement statement;
+    private final boolean writes;
+
+    private CachedStatement(PreparedStatement statement, boolean writes) {
+      this.statement = statement;
+      this.writes = writes;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package ng3.db;
+
+import ng3.Settings;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The directories of the catalog as a tree of path nodes, each one a parent and a single name segment. Files refer
+ * to the node of the directory they are in and only store their own name, so the long common prefixes are stored
+ * once. Nodes are never removed, and the most recently used ones are cached in both directions.
+ * <p>
+ * A missing node is inserted right away rather than through a batch, so it exists before any batch referring to it is
+ * written, whichever writer gets there first. It is inserted on a connection of its own, so nodes are only created
+ * outside of a session - the work of the session is not committed along with it.
+ */
+public class PathDictionary {
+  private static final long NO_PARENT = 0;
+  private final DbClient dbClient;
+  private final Map<Path, Long> ids = lruCache();
+  private final Map<Long, Path> paths = lruCache();
+  private long lastId = -1;
+
+  PathDictionary(DbClient dbClient) {
+    this.dbClient = dbClient;
+  }
+
+  /**
+   * Returns the node of the directory, creating it and any missing parent nodes. Creating one inside a session fails,
+   * the pool might not have a second connection.
+   */
+  public long nodeId(Path directory) {
+    Long id = ids.get(directory);
+    return id != null ? id : createNode(directory);
+  }
+
+  /**
+   * Returns the node of the directory, or null if it has none - then nothing in the catalog was ever below it. Never
+   * creates one, so it may be called inside a session.
+   */
+  public Long findNodeId(Path directory) {
+    Long id = ids.get(directory);
+    if (id == null) {
+      Path parent = directory.getParent();
+      Long parentId = parent == null ? Long.valueOf(NO_PARENT) : findNodeId(parent);
+      if (parentId == null) {
+        return null;
+      }
+      id = dbClient.buildQuery("select path_node_id from path_node where parent_id=? and name=?")
+              .withParam().longValue(1, parentId)
+              .withParam().stringValue(2, parent == null ? directory.toString() : directory.getFileName().toString())
+              .executeQueryForObject(rs -> rs.getLong(1));
+      if (id != null) {
+        cache(id, directory);
+      }
+    }
+    return id;
+  }
+
+  // the nodes directly below the node by name, not cached
+  public Map<String, Long> children(long nodeId) {
+    Map<String, Long> children = new HashMap<>();
+    dbClient.buildQuery("select path_node_id, name from path_node where parent_id=?")
+            .withParam().longValue(1, nodeId)
+            .forEachRow(rs -> children.put(rs.getString(2), rs.getLong(1)));
+    return children;
+  }
+
+  /**
+   * Returns the directory of the node. Looks it up if it is not cached, so it must only be called while reading a
+   * result set if that is done in a session - the pool might not have a second connection.
+   */
+  public Path path(long nodeId) {
+    Path path = paths.get(nodeId);
+    if (path == null) {
+      Node node = dbClient.buildQuery("select parent_id, name from path_node where path_node_id=?")
+              .withParam().longValue(1, nodeId)
+              .executeQueryForObject(rs -> new Node(rs.getLong(1), rs.getString(2)));
+      if (node == null) {
+        throw new DatabaseException("No such path node: " + nodeId);
+      }
+      path = node.parentId == NO_PARENT ? Paths.get(node.name) : path(node.parentId).resolve(node.name);
+      cache(nodeId, path);
+    }
+    return path;
+  }
+
+  private synchronized long createNode(Path directory) {
+    Long id = ids.get(directory);
+    if (id != null) {
+      return id;
+    }
+
+    Path parent = directory.getParent();
+    long parentId = parent == null ? NO_PARENT : nodeId(parent);
+    String name = parent == null ? directory.toString() : directory.getFileName().toString();
+
+    id = dbClient.buildQuery("select path_node_id from path_node where parent_id=? and name=?")
+            .withParam().longValue(1, parentId)
+            .withParam().stringValue(2, name)
+            .executeQueryForObject(rs -> rs.getLong(1));
+    if (id == null) {
+      if (dbClient.currentSession() != null) {
+        throw new IllegalStateException("Path nodes cannot be created inside a session: " + directory);
+      }
+      if (lastId < 0) {
+        lastId = dbClient.buildQuery("select max(path_node_id) from path_node")
+                .executeQueryForObject(rs -> rs.getLong(1));
+      }
+      id = ++lastId;
+      dbClient.buildQuery("insert into path_node (path_node_id, parent_id, name) values (?, ?, ?)")
+              .withParam().longValue(1, id)
+              .withParam().longValue(2, parentId)
+              .withParam().stringValue(3, name)
+              .executeUpdate();
+    }
+    cache(id, directory);
+    return id;
+  }
+
+  private void cache(long nodeId, Path path) {
+    ids.put(path, nodeId);
+    paths.put(nodeId, path);
+  }
+
+  private static <K, V> Map<K, V> lruCache() {
+    return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > Settings.PATH_DICTIONARY_CACHE_SIZE;
+      }
+    });
+  }
+
+  private static class Node {
+    private final long parentId;
+    private final String name;
+
+    private Node(long parentId, String name) {
+      this.parentId = parentId;
+      this.name = name;
+    }
+  }
+}
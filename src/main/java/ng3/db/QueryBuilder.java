@@ -5,6 +5,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.nio.file.Path;
 import java.sql.*;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
@@ -17,14 +18,42 @@ import java.util.stream.Collectors;
 public class QueryBuilder {
   private Logger logger = LoggerFactory.getLogger(getClass());
   private final Connection connection;
+  private final boolean closeConnection;
+  private final boolean cachedStatement;
   private PreparedStatement statement;
   private PreparedStatementWrapper statementWrapper;
 
   QueryBuilder(Connection connection) {
+    this(connection, true);
+  }
+
+  QueryBuilder(Connection connection, boolean closeConnection) {
     this.connection = connection;
+    this.closeConnection = closeConnection;
+    cachedStatement = false;
+  }
+
+  // a statement cached by a session, it is reset rather than closed when done
+  QueryBuilder(PreparedStatement statement) {
+    connection = null;
+    closeConnection = false;
+    cachedStatement = true;
+    this.statement = statement;
+    statementWrapper = new PreparedStatementWrapper(statement);
   }
 
   public void abort() {
+    if (cachedStatement) {
+      try {
+        statement.clearParameters();
+        statement.clearBatch();
+        statement.setFetchSize(0);
+      } catch (SQLException e) {
+        logger.error("Could not reset statement", e);
+      }
+      return;
+    }
+
     try {
       if (statement != null && !statement.isClosed()) {
         statement.close();
@@ -34,7 +63,7 @@ public class QueryBuilder {
     }
 
     try {
-      if (connection != null && !connection.isClosed()) {
+      if (closeConnection && connection != null && !connection.isClosed()) {
         connection.close();
       }
     } catch (SQLException e) {
@@ -53,6 +82,17 @@ public class QueryBuilder {
     }
   }
 
+  // a hint for how many rows to read from the database at a time, for queries reading more than they keep
+  public QueryBuilder withFetchSize(int fetchSize) {
+    try {
+      statement.setFetchSize(fetchSize);
+      return this;
+    } catch (Throwable t) {
+      abort();
+      throw new DatabaseException(t);
+    }
+  }
+
   public PreparedStatementWrapper withParam() {
     return statementWrapper;
   }
@@ -72,6 +112,19 @@ public class QueryBuilder {
     }
   }
 
+  public void forEachRow(RowCallback callback) {
+    try (ResultSet resultSet = statement.executeQuery()) {
+      ResultSetWrapper resultSetWrapper = new ResultSetWrapper(resultSet);
+      while (resultSet.next()) {
+        callback.handle(resultSetWrapper);
+      }
+    } catch (Throwable t) {
+      throw new DatabaseException(t);
+    } finally {
+      abort();
+    }
+  }
+
   public <T> T executeQueryForObject(ResultSetHandler<T> handler) {
     try (ResultSet resultSet = statement.executeQuery()) {
       T result = null;
@@ -115,10 +168,37 @@ public class QueryBuilder {
     }
   }
 
+  public QueryBuilder addBatch() {
+    try {
+      statement.addBatch();
+      return this;
+    } catch (Throwable t) {
+      throw new DatabaseException(t);
+    }
+  }
+
+  public int executeBatch() {
+    try {
+      int results = 0;
+      for (int result : statement.executeBatch()) {
+        if (result > 0) {
+          results += result;
+        }
+      }
+      return results;
+    } catch (Throwable t) {
+      throw new DatabaseException(t);
+    }
+  }
+
   public interface ResultSetHandler<T> {
     T handle(ResultSetWrapper resultSet) throws SQLException;
   }
 
+  public interface RowCallback {
+    void handle(ResultSetWrapper resultSet) throws SQLException;
+  }
+
   public interface ValueMapper<T> {
     void mapValue(T value, PreparedStatementWrapper statement);
   }
@@ -151,17 +231,29 @@ public class QueryBuilder {
     }
 
     public QueryBuilder uuidValue(int index, UUID value) {
-      return stringValue(index, value.toString());
+      try {
+        preparedStatement.setBytes(index, UuidBytes.cachedBytes(value));
+        return QueryBuilder.this;
+      } catch (Throwable t) {
+        throw new DatabaseException(t);
+      }
     }
 
     public QueryBuilder uuidValues(int firstIndex, List<UUID> values) {
-      return stringValues(firstIndex, values.stream().map(UUID::toString).collect(Collectors.toList()));
+      for (int i = 0; i < values.size(); i++) {
+        uuidValue(firstIndex + i, values.get(i));
+      }
+      return QueryBuilder.this;
     }
 
     public QueryBuilder fileValue(int index, File value) {
       return stringValue(index, value.toString());
     }
 
+    public QueryBuilder pathValue(int index, Path value) {
+      return stringValue(index, value.toString());
+    }
+
     public QueryBuilder timestampValue(int index, ZonedDateTime value) {
       Timestamp ts = value == null ? null : TimeUtilsNG.at(value).to(ZoneOffset.UTC).toTimestamp();
       try {
@@ -181,6 +273,28 @@ public class QueryBuilder {
       }
     }
 
+    public QueryBuilder longValue(int index, long value) {
+      try {
+        preparedStatement.setLong(index, value);
+        return QueryBuilder.this;
+      } catch (Throwable t) {
+        throw new DatabaseException(t);
+      }
+    }
+
+    public QueryBuilder nullableLongValue(int index, Long value) {
+      try {
+        if (value == null) {
+          preparedStatement.setNull(index, Types.BIGINT);
+        } else {
+          preparedStatement.setLong(index, value);
+        }
+        return QueryBuilder.this;
+      } catch (Throwable t) {
+        throw new DatabaseException(t);
+      }
+    }
+
     public QueryBuilder booleanValue(int index, boolean value) {
       try {
         preparedStatement.setBoolean(index, value);
@@ -34,6 +34,16 @@ public class ResultSetWrapper {
     return resultSet.getInt(columnIndex);
   }
 
+  public long getLong(int columnIndex) throws SQLException {
+    return resultSet.getLong(columnIndex);
+  }
+
+  // for nullable keys, without boxing
+  public long getLong(int columnIndex, long ifNull) throws SQLException {
+    long value = resultSet.getLong(columnIndex);
+    return resultSet.wasNull() ? ifNull : value;
+  }
+
   public ZonedDateTime getTimestamp(int columnIndex) throws SQLException {
     Timestamp ts = resultSet.getTimestamp(columnIndex);
     return ts == null ? null : TimeUtilsNG.at(ts, ZoneOffset.UTC).to(ZoneId.systemDefault()).toZonedDateTime();
@@ -45,8 +55,8 @@ public class ResultSetWrapper {
   }
 
   public UUID getUuid(int columnIndex) throws SQLException {
-    String uuid = getString(columnIndex);
-    return uuid == null ? null : UUID.fromString(uuid);
+    byte[] uuid = resultSet.getBytes(columnIndex);
+    return uuid == null ? null : UuidBytes.fromBytes(uuid);
   }
 
   public String getString(String columnLabel) throws SQLException {
@@ -61,6 +71,10 @@ public class ResultSetWrapper {
     return resultSet.getInt(columnLabel);
   }
 
+  public long getLong(String columnLabel) throws SQLException {
+    return resultSet.getLong(columnLabel);
+  }
+
   public ZonedDateTime getTimestamp(String columnLabel) throws SQLException {
     Timestamp ts = resultSet.getTimestamp(columnLabel);
     return ts == null ? null : TimeUtilsNG.at(ts, ZoneOffset.UTC).to(ZoneId.systemDefault()).toZonedDateTime();
@@ -72,7 +86,7 @@ public class ResultSetWrapper {
   }
 
   public UUID getUuid(String columnLabel) throws SQLException {
-    String uuid = getString(columnLabel);
-    return uuid == null ? null : UUID.fromString(uuid);
+    byte[] uuid = resultSet.getBytes(columnLabel);
+    return uuid == null ? null : UuidBytes.fromBytes(uuid);
   }
 }
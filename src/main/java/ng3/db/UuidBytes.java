@@ -0,0 +1,53 @@
+package ng3.db;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * UUID keys are stored as their 16 bytes, most significant first, in {@code char(16) for bit data} columns.
+ */
+final class UuidBytes {
+  // a power of two, slots are picked by the low bits of the hash
+  private static final int CACHE_SIZE = 256;
+  private static final Entry[] cache = new Entry[CACHE_SIZE];
+
+  private UuidBytes() {
+  }
+
+  static byte[] toBytes(UUID uuid) {
+    return ByteBuffer.allocate(16)
+            .putLong(uuid.getMostSignificantBits())
+            .putLong(uuid.getLeastSignificantBits())
+            .array();
+  }
+
+  /**
+   * The bytes of the UUID, shared with every other caller binding it - they must not be changed. Directory, plan and
+   * lease ids are bound over and over and stay in the cache, a one-off id only takes the slot until another id needs it.
+   */
+  static byte[] cachedBytes(UUID uuid) {
+    int slot = uuid.hashCode() & (CACHE_SIZE - 1);
+    Entry entry = cache[slot];
+    if (entry == null || !entry.uuid.equals(uuid)) {
+      // entries are immutable, a thread that does not see this one yet just makes its own
+      entry = new Entry(uuid, toBytes(uuid));
+      cache[slot] = entry;
+    }
+    return entry.bytes;
+  }
+
+  static UUID fromBytes(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    return new UUID(buffer.getLong(), buffer.getLong());
+  }
+
+  private static class Entry {
+    private final UUID uuid;
+    private final byte[] bytes;
+
+    private Entry(UUID uuid, byte[] bytes) {
+      this.uuid = uuid;
+      this.bytes = bytes;
+    }
+  }
+}
@@ -1,23 +1,43 @@
 package ng3.drivers;
 
 import ng3.BackupDirectory;
+import ng3.Device;
 import ng3.Settings;
 import ng3.agent.BackupReportWriter;
 import ng3.common.SimpleThreadFactory;
 import ng3.conf.Configuration;
 import ng3.db.DbClient;
+import ng3.db.DbSession;
+import ng3.db.QueryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 abstract public class AbstractBackupDriver implements BackupDriver {
+  private static final String PENDING_UPLOAD = "(upload_started is null or (upload_finished is not null and upload_started>upload_finished) or (upload_started is not null and last_modified>upload_started))";
+  // no session holds the file, or the one that did stopped renewing its lease
+  private static final String UNLEASED = "(lease_expires is null or lease_expires<?)";
+  // a claim that never finished is pending again once its lease is gone, which is how abandoned claims are recovered
+  private static final String CLAIMABLE = "(" + UNLEASED + " and (upload_finished is null or " + PENDING_UPLOAD + "))";
   private final Logger logger = LoggerFactory.getLogger(getClass());
 
   @Override
@@ -30,9 +50,6 @@ abstract public class AbstractBackupDriver implements BackupDriver {
 
   @Override
   public final BackupSession startSession(DbClient dbClient, Configuration configuration, BackupReportWriter report, List<BackupDirectory> backupDirectories) {
-    //dbClient.buildQuery("update file set upload_finished=null").executeUpdate(); // TODO: BORT!
-    dbClient.buildQuery("update file set upload_started=null where upload_finished is null")
-        .executeUpdate();
     AbstractBackupSession session = openSession(dbClient, configuration, report, backupDirectories);
     new SimpleThreadFactory("BackupDriver").newThread(session).start();
     logger.info("Session started");
@@ -60,20 +77,36 @@ abstract public class AbstractBackupDriver implements BackupDriver {
     protected final DbClient dbClient;
     protected final BackupReportWriter report;
     protected final List<BackupDirectory> backupDirectories;
-    private final List<UUID> directoryIds;
+    private final Map<UUID, Device> devices = new HashMap<>();
+    private final Map<UUID, Integer> settleTimes = new HashMap<>();
+    private final Map<Long, Long> readsStartedAt = new ConcurrentHashMap<>();
+    private final Set<Long> storedFiles = ConcurrentHashMap.newKeySet();
+    // claimed rows put off until they have settled, and not claimed since
+    private final Set<Long> deferredFiles = new HashSet<>();
+    private final Semaphore readFreed = new Semaphore(0);
+    private final Map<String, List<Long>> waitingLinks = new HashMap<>();
     private final Semaphore sessionSemaphore = new Semaphore(0);
     private final Semaphore taskSemaphore = new Semaphore(0);
+    // identifies the claims of this session in the catalog
+    private final UUID leaseOwner = UUID.randomUUID();
+    // claimed but not yet handed to the driver, only used by the session thread
+    private final Deque<BackupFile> claimed = new ArrayDeque<>();
 
     public AbstractBackupSession(DbClient dbClient, BackupReportWriter report, List<BackupDirectory> backupDirectories) {
       this.dbClient = dbClient;
       this.report = report;
       this.backupDirectories = backupDirectories;
-      directoryIds = backupDirectories.stream().map(BackupDirectory::getId).collect(Collectors.toList());
+      backupDirectories.forEach(v -> {
+        devices.put(v.getId(), v.getDevice());
+        settleTimes.put(v.getId(), v.getConfiguration().getSettleTime());
+      });
     }
 
     @Override
     public final void endSession() {
       sessionSemaphore.release();
+      // the session thread may be waiting for more files to show up
+      readFreed.release();
       taskSemaphore.acquireUninterruptibly();
       logger.info("Session ended");
     }
@@ -86,10 +119,49 @@ abstract public class AbstractBackupDriver implements BackupDriver {
     protected void finish() {
     }
 
+    /**
+     * Must be called once for every file handed to {@link #handleFile(BackupFile)}, when the driver is done reading
+     * it - successful or not. Frees up the read permit of its device. Calling it again for the same file does nothing.
+     */
+    protected final void readFinished(BackupFile backupFile) {
+      Long startedAt = readsStartedAt.remove(backupFile.id);
+      if (startedAt == null) {
+        return;
+      }
+      if (!storedFiles.remove(backupFile.id) && backupFile.movedFrom != null) {
+        abandonMove(backupFile);
+      }
+      Device device = devices.get(backupFile.directoryId);
+      releaseWaitingLinks(backupFile);
+      device.releaseRead();
+      readFreed.release();
+      report.getDeviceReportWriter(device).read(backupFile.deleted ? 0 : backupFile.file.length(), startedAt);
+    }
+
     protected final void uploadFinished(BackupFile backupFile) {
-      dbClient.buildQuery("update file set upload_finished=? where file_id=?")
+      dbClient.buildQuery("update file set upload_finished=?, link_source_id=null, moved_from_id=null, metadata_only=false, lease_owner=null, lease_expires=null where file_id=?")
           .withParam().timestampValue(1, ZonedDateTime.now())
-          .withParam().uuidValue(2, backupFile.id)
+          .withParam().longValue(2, backupFile.id)
+          .executeUpdate();
+      storedFiles.add(backupFile.id);
+    }
+
+    /**
+     * Records that the file was stored as a link to {@link BackupFile#linkTo} rather than with its own content.
+     */
+    protected final void linkFinished(BackupFile backupFile) {
+      dbClient.buildQuery("update file set upload_finished=?, link_source_id=?, moved_from_id=null, metadata_only=false, lease_owner=null, lease_expires=null where file_id=?")
+          .withParam().timestampValue(1, ZonedDateTime.now())
+          .withParam().longValue(2, backupFile.linkTo.id)
+          .withParam().longValue(3, backupFile.id)
+          .executeUpdate();
+      storedFiles.add(backupFile.id);
+    }
+
+    // the deletion of the source is no longer held back for a move that failed, the file is stored from its own content
+    private void abandonMove(BackupFile backupFile) {
+      dbClient.buildQuery("update file set moved_from_id=null where file_id=?")
+          .withParam().longValue(1, backupFile.id)
           .executeUpdate();
     }
 
@@ -111,60 +183,329 @@ abstract public class AbstractBackupDriver implements BackupDriver {
 
     private void runInternal() {
       init();
+      // renewed on a thread of its own, the session thread can be held up by a driver for longer than a lease lasts
+      long renewalInterval = TimeUnit.SECONDS.toMillis(Settings.BACKUP_DRIVER_LEASE_IN_SECONDS) / 3;
+      ScheduledExecutorService leaseRenewal = Executors.newSingleThreadScheduledExecutor(new SimpleThreadFactory("LeaseRenewal"));
+      leaseRenewal.scheduleAtFixedRate(this::renewLeases, renewalInterval, renewalInterval, TimeUnit.MILLISECONDS);
+      try {
+        handleFiles();
+      } finally {
+        leaseRenewal.shutdownNow();
+      }
+
+      countDeferredFiles();
+      finish();
+      releaseLeases();
+    }
 
+    private void handleFiles() {
       while (true) {
-        BackupFile file = getAndMarkNextFileForBackup();
+        // only pick files from devices that can take another read, so a busy disk doesn't hold up the others
+        List<UUID> readableDirectoryIds = devices.entrySet().stream()
+            .filter(e -> e.getValue().canRead())
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList());
+        BackupFile file = readableDirectoryIds.isEmpty() ? null : nextFile(readableDirectoryIds);
         if (file == null) {
-          if (sessionSemaphore.availablePermits() > 0) {
+          if (readableDirectoryIds.size() == devices.size() && sessionSemaphore.availablePermits() > 0 && !hasWaitingLinks()) {
             break;
           }
           try {
-            Thread.sleep(Settings.BACKUP_DRIVER_POLL_TIMEOUT_IN_MS);
+            // woken up early when a read finishes, its device might have more files waiting
+            readFreed.tryAcquire(Settings.BACKUP_DRIVER_POLL_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+            readFreed.drainPermits();
           } catch (InterruptedException e) {
             Thread.interrupted();
           }
           continue;
         }
 
+        // permits are only taken here, so the one seen free above is still there
+        devices.get(file.directoryId).acquireRead();
+        readsStartedAt.put(file.id, System.currentTimeMillis());
         report.getTargetReportWriter().processedFile();
-        handleFile(file);
+        try {
+          handleFile(file);
+        } catch (Throwable error) {
+          // the driver did not take the file, the read is finished here - the session waits for the links waiting on it
+          logger.error("Unhandled exception caught while handing over '{}'", file.file);
+          logger.error("", error);
+          report.addError("Internal error while processing '%s' - see system logs for details", file.file);
+          report.getTargetReportWriter().failedFile();
+          readFinished(file);
+        }
       }
+    }
 
-      finish();
+    // files in flight, or held back after failing, keep their lease for as long as the session runs
+    private void renewLeases() {
+      try {
+        dbClient.buildQuery("update file set lease_expires=? where lease_owner=?")
+            .withParam().timestampValue(1, ZonedDateTime.now().plusSeconds(Settings.BACKUP_DRIVER_LEASE_IN_SECONDS))
+            .withParam().uuidValue(2, leaseOwner)
+            .executeUpdate();
+      } catch (Throwable t) {
+        // a failed renewal must not cancel the next ones
+        logger.error("Could not renew leases", t);
+      }
+    }
+
+    // whatever is still leased was not stored, the next session claims it right away instead of waiting out the lease
+    private void releaseLeases() {
+      dbClient.buildQuery("update file set lease_owner=null, lease_expires=null where lease_owner=?")
+          .withParam().uuidValue(1, leaseOwner)
+          .executeUpdate();
+    }
+
+    // files that have not settled by the end of the session are left for the next one
+    private void countDeferredFiles() {
+      report.getTargetReportWriter().deferredFiles(deferredFiles.size());
+    }
+
+    // files are claimed a batch at a time and handed out from memory, claiming more once none of those can be read
+    private BackupFile nextFile(List<UUID> directoryIds) {
+      while (true) {
+        BackupFile backupFile = takeClaimed(directoryIds);
+        if (backupFile != null || !claimFiles(directoryIds)) {
+          return backupFile;
+        }
+      }
+    }
+
+    private BackupFile takeClaimed(List<UUID> directoryIds) {
+      Iterator<BackupFile> iterator = claimed.iterator();
+      while (iterator.hasNext()) {
+        BackupFile backupFile = iterator.next();
+        if (directoryIds.contains(backupFile.directoryId)) {
+          iterator.remove();
+          if (!waitForLink(backupFile)) {
+            return backupFile;
+          }
+        }
+      }
+      return null;
+    }
+
+    // another path to the same content is being stored, link to it once it is done instead of storing it again
+    private boolean waitForLink(BackupFile backupFile) {
+      if (backupFile.hardlinkKey == null || backupFile.linkTo != null || backupFile.deleted) {
+        return false;
+      }
+      synchronized (waitingLinks) {
+        if (waitingLinks.containsKey(backupFile.hardlinkKey)) {
+          waitingLinks.get(backupFile.hardlinkKey).add(backupFile.id);
+          return true;
+        }
+        waitingLinks.put(backupFile.hardlinkKey, new ArrayList<>());
+        return false;
+      }
     }
 
-    private BackupFile getAndMarkNextFileForBackup() {
-      BackupFile backupFile = dbClient.buildQuery(
-          "select file_id, filename, deleted, directory_id, last_modified from file " +
-              "where directory_id in (" + IntStream.range(0, directoryIds.size()).mapToObj(v -> "?").collect(Collectors.joining(",")) + ") " +
-              "and upload_started is null or (upload_finished is not null and upload_started>upload_finished) or (upload_started is not null and last_modified>upload_started) " +
+    private boolean hasWaitingLinks() {
+      synchronized (waitingLinks) {
+        return !waitingLinks.isEmpty();
+      }
+    }
+
+    // the waiting files are released to be claimed again, they find the stored file to link to - or store it themselves
+    private void releaseWaitingLinks(BackupFile backupFile) {
+      if (backupFile.hardlinkKey == null || backupFile.linkTo != null || backupFile.deleted) {
+        return;
+      }
+      List<Long> waiting;
+      synchronized (waitingLinks) {
+        waiting = waitingLinks.remove(backupFile.hardlinkKey);
+      }
+      if (waiting != null && !waiting.isEmpty()) {
+        dbClient.buildQuery("update file set upload_started=null, lease_owner=null, lease_expires=null where file_id=?")
+            .executeUpdate(waiting, (v, p) -> p.longValue(1, v));
+      }
+    }
+
+    // claims run on one session, released before the files are handed to the driver - its threads need connections too;
+    // false once there is nothing left to claim
+    private boolean claimFiles(List<UUID> directoryIds) {
+      List<CatalogRow> settled = new ArrayList<>();
+      Map<Long, File> files = new HashMap<>();
+      Set<Long> leased;
+      try (DbSession session = dbClient.openSession()) {
+        ZonedDateTime now = ZonedDateTime.now();
+        QueryBuilder query = dbClient.buildQuery(
+            "select file_id, path_node_id, name, deleted, directory_id, last_modified, hardlink_key, moved_from_id, metadata_only from file f " +
+                "where directory_id in (" + directoryIds.stream().map(v -> "?").collect(Collectors.joining(", ")) + ") " +
+                "and " + CLAIMABLE + " " +
+                // the deletion of a moved file waits until its new path has been stored, the move needs the old content
+                "and (deleted=false or not exists (select file_id from file m where m.moved_from_id=f.file_id)) " +
+                "fetch next " + Settings.BACKUP_DRIVER_CLAIM_BATCH_SIZE + " rows only");
+        query.withParam().uuidValues(1, directoryIds);
+        query.withParam().timestampValue(directoryIds.size() + 1, now);
+        List<CatalogRow> rows = query.executeQuery(rs -> new CatalogRow(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getBoolean(4), rs.getUuid(5), rs.getTimestamp(6), rs.getString(7), rs.getLong(8, 0), rs.getBoolean(9)));
+        if (rows.isEmpty()) {
+          return false;
+        }
+
+        // files changed within the settle time of their directory, going by the catalog, are still being written
+        List<CatalogRow> unsettled = new ArrayList<>();
+        for (CatalogRow row : rows) {
+          if (row.deleted || hasSettled(row, now)) {
+            // resolved once the result set is closed, the pool might only have the one connection
+            settled.add(row);
+            files.put(row.id, new File(dbClient.getPathDictionary().path(row.pathNodeId).toFile(), row.name));
+          } else {
+            unsettled.add(row);
+          }
+        }
+        if (!unsettled.isEmpty()) {
+          defer(unsettled, now);
+        }
+        leased = settled.isEmpty() ? Collections.emptySet() : lease(settled);
+        session.commit();
+      }
+      deferredFiles.removeAll(leased);
+
+      for (CatalogRow row : settled) {
+        if (leased.contains(row.id)) {
+          BackupFile linkTo = row.deleted || row.hardlinkKey == null ? null : findLinkSource(row);
+          BackupFile movedFrom = row.deleted || row.movedFromId == 0 ? null : findMoveSource(row);
+          claimed.add(new BackupFile(row.id, files.get(row.id), row.deleted, row.directoryId, row.lastModified, row.hardlinkKey, linkTo, movedFrom, !row.deleted && row.metadataOnly));
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Unowned leases that run out once the files have settled, so they are not selected again until then. They outlast
+     * the session, the next one leaves the files alone as well.
+     */
+    private void defer(List<CatalogRow> rows, ZonedDateTime now) {
+      QueryBuilder update = dbClient.buildQuery("update file set lease_owner=null, lease_expires=? where file_id=? and " + UNLEASED);
+      for (CatalogRow row : rows) {
+        update.withParam().timestampValue(1, row.lastModified.plusSeconds(settleTimes.get(row.directoryId)))
+            .withParam().longValue(2, row.id)
+            .withParam().timestampValue(3, now)
+            .addBatch();
+        deferredFiles.add(row.id);
+      }
+      try {
+        update.executeBatch();
+      } finally {
+        update.abort();
+      }
+    }
+
+    // leases the rows in one update, those another session leased or stored since they were selected are left out
+    private Set<Long> lease(List<CatalogRow> rows) {
+      String ids = rows.stream().map(v -> "?").collect(Collectors.joining(", "));
+      ZonedDateTime now = ZonedDateTime.now();
+      QueryBuilder update = dbClient.buildQuery("update file set upload_started=?, upload_finished=null, lease_owner=?, lease_expires=? where file_id in (" + ids + ") and " + CLAIMABLE)
+          .withParam().timestampValue(1, now)
+          .withParam().uuidValue(2, leaseOwner)
+          .withParam().timestampValue(3, now.plusSeconds(Settings.BACKUP_DRIVER_LEASE_IN_SECONDS));
+      int index = 4;
+      for (CatalogRow row : rows) {
+        update.withParam().longValue(index++, row.id);
+      }
+      update.withParam().timestampValue(index, now);
+      if (update.executeUpdate() == rows.size()) {
+        return rows.stream().map(v -> v.id).collect(Collectors.toSet());
+      }
+
+      QueryBuilder query = dbClient.buildQuery("select file_id from file where lease_owner=? and file_id in (" + ids + ")")
+          .withParam().uuidValue(1, leaseOwner);
+      index = 2;
+      for (CatalogRow row : rows) {
+        query.withParam().longValue(index++, row.id);
+      }
+      return new HashSet<>(query.executeQuery(rs -> rs.getLong(1)));
+    }
+
+    // a path to the same content that has been stored as it is now, and not as a link itself
+    private BackupFile findLinkSource(CatalogRow row) {
+      CatalogRow source = dbClient.buildQuery(
+          "select file_id, path_node_id, name, deleted, directory_id, last_modified, hardlink_key from file " +
+              "where hardlink_key=? and file_id<>? and deleted=false and last_modified=? and link_source_id is null " +
+              "and upload_finished is not null and upload_finished>=upload_started and last_modified<=upload_started " +
               "fetch next 1 rows only")
-          .withParam().uuidValues(1, directoryIds)
-          .executeQueryForObject(rs -> new BackupFile(rs.getUuid(1), rs.getFile(2), rs.getBoolean(3), rs.getUuid(4), rs.getTimestamp(5)));
+          .withParam().stringValue(1, row.hardlinkKey)
+          .withParam().longValue(2, row.id)
+          .withParam().timestampValue(3, row.lastModified)
+          .executeQueryForObject(rs -> new CatalogRow(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getBoolean(4), rs.getUuid(5), rs.getTimestamp(6), rs.getString(7), 0, false));
+      if (source == null) {
+        return null;
+      }
+      File file = new File(dbClient.getPathDictionary().path(source.pathNodeId).toFile(), source.name);
+      return new BackupFile(source.id, file, false, source.directoryId, source.lastModified, source.hardlinkKey, null, null, false);
+    }
 
-      if (backupFile != null) {
-        dbClient.buildQuery("update file set upload_started=?, upload_finished=null where file_id=?")
-            .withParam().timestampValue(1, ZonedDateTime.now())
-            .withParam().uuidValue(2, backupFile.id)
-            .executeUpdate();
+    // the file the scanner found this one was moved from, its content is still in the target
+    private BackupFile findMoveSource(CatalogRow row) {
+      CatalogRow source = dbClient.buildQuery("select file_id, path_node_id, name, deleted, directory_id, last_modified from file where file_id=?")
+          .withParam().longValue(1, row.movedFromId)
+          .executeQueryForObject(rs -> new CatalogRow(rs.getLong(1), rs.getLong(2), rs.getString(3), rs.getBoolean(4), rs.getUuid(5), rs.getTimestamp(6), null, 0, false));
+      if (source == null) {
+        return null;
       }
-      return backupFile;
+      File file = new File(dbClient.getPathDictionary().path(source.pathNodeId).toFile(), source.name);
+      return new BackupFile(source.id, file, source.deleted, source.directoryId, source.lastModified, null, null, null, false);
+    }
+
+    // last_modified is the change time the scanner saw, so an owner or mode change counts as well
+    private boolean hasSettled(CatalogRow row, ZonedDateTime now) {
+      int settleTime = settleTimes.get(row.directoryId);
+      return settleTime == 0 || !row.lastModified.isAfter(now.minusSeconds(settleTime));
+    }
+  }
+
+  private static class CatalogRow {
+    private final long id;
+    private final long pathNodeId;
+    private final String name;
+    private final boolean deleted;
+    private final UUID directoryId;
+    private final ZonedDateTime lastModified;
+    private final String hardlinkKey;
+    // 0 unless it was moved, keys start at 1
+    private final long movedFromId;
+    private final boolean metadataOnly;
+
+    private CatalogRow(long id, long pathNodeId, String name, boolean deleted, UUID directoryId, ZonedDateTime lastModified, String hardlinkKey, long movedFromId, boolean metadataOnly) {
+      this.id = id;
+      this.pathNodeId = pathNodeId;
+      this.name = name;
+      this.deleted = deleted;
+      this.directoryId = directoryId;
+      this.lastModified = lastModified;
+      this.hardlinkKey = hardlinkKey;
+      this.movedFromId = movedFromId;
+      this.metadataOnly = metadataOnly;
     }
   }
 
   public class BackupFile {
-    public final UUID id;
+    public final long id;
     public final File file;
     public final boolean deleted;
     public final UUID directoryId;
     public final ZonedDateTime lastModified;
+    // identifies the content shared by hard links, null for a file with a single link
+    public final String hardlinkKey;
+    // another path to the same content, already stored - the driver may store this one as a link to it
+    public final BackupFile linkTo;
+    // the path this file was moved from, its content is in the target there - the driver may move or copy it over
+    public final BackupFile movedFrom;
+    // only owner, mode or timestamps changed since the content was last stored - the driver may keep that content
+    public final boolean metadataOnly;
 
-    private BackupFile(UUID id, File file, boolean deleted, UUID directoryId, ZonedDateTime lastModified) {
+    private BackupFile(long id, File file, boolean deleted, UUID directoryId, ZonedDateTime lastModified, String hardlinkKey, BackupFile linkTo, BackupFile movedFrom, boolean metadataOnly) {
       this.id = id;
       this.file = file;
       this.deleted = deleted;
       this.directoryId = directoryId;
       this.lastModified = lastModified;
+      this.hardlinkKey = hardlinkKey;
+      this.linkTo = linkTo;
+      this.movedFrom = movedFrom;
+      this.metadataOnly = metadataOnly;
     }
   }
 }
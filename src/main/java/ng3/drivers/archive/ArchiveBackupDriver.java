@@ -97,6 +97,14 @@ public class ArchiveBackupDriver extends AbstractBackupDriver {
 
     @Override
     protected void handleFile(BackupFile backupFile) {
+      try {
+        addToArchive(backupFile);
+      } finally {
+        readFinished(backupFile);
+      }
+    }
+
+    private void addToArchive(BackupFile backupFile) {
       String entryName = backupFile.file.toString();
 
       if (directoryPrefixes.containsKey(backupFile.directoryId)) {
@@ -115,7 +123,7 @@ public class ArchiveBackupDriver extends AbstractBackupDriver {
 
       try {
         if (backupFile.file.exists()) {
-          archiver.addFile(backupFile.file, entryName);
+          archiver.addFile(backupFile.file, entryName, backupFile.hardlinkKey);
         } else {
           archiver.deleteFile(backupFile.file, entryName, backupFile.lastModified);
         }
@@ -6,6 +6,7 @@ import ng3.common.CryptoUtils;
 import ng3.common.TimeUtilsNG;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,6 +21,7 @@ import java.security.Key;
 import java.text.SimpleDateFormat;
 import java.time.ZonedDateTime;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.zip.GZIPOutputStream;
 
@@ -43,6 +45,8 @@ public class TarGzArchiver {
   private final String timestamp;
   private ng3.Metadata.Meta.Builder metaBuilder;
   private File targetFile;
+  // entries of the current archive with more than one link, by hardlink key - a tar link can only refer back within the archive
+  private final Map<String, String> linkableEntries = new HashMap<>();
 
   public TarGzArchiver(String archivePrefix, boolean compress, char[] password, Integer maxFilesInArchive, Long maxBytesInArchive) {
     this.archivePrefix = archivePrefix;
@@ -67,16 +71,29 @@ public class TarGzArchiver {
     filesInArchive++;
   }
 
-  public void addFile(File file, String name) throws IOException {
+  public void addFile(File file, String name, String hardlinkKey) throws IOException {
     TarArchiveEntry entry = getArchiveEntry(file, name);
+    String linkName = hardlinkKey == null ? null : linkableEntries.get(hardlinkKey);
+    if (linkName != null) {
+      // the content is already in this archive under another name
+      entry = new TarArchiveEntry(name, TarConstants.LF_LINK);
+      entry.setLinkName(linkName);
+    }
     try {
       Map<String, Object> attributes = Files.readAttributes(file.toPath(), "unix:uid,gid,mode");
       entry.setIds((int) attributes.get("uid"), (int) attributes.get("gid"));
       entry.setMode((int) attributes.get("mode"));
     } catch (IllegalArgumentException ignored) {}
-    entry.setSize(file.length());
     entry.setModTime(file.lastModified());
 
+    if (linkName != null) {
+      tarOutputStream.putArchiveEntry(entry);
+      tarOutputStream.closeArchiveEntry();
+      filesInArchive++;
+      return;
+    }
+
+    entry.setSize(file.length());
     tarOutputStream.putArchiveEntry(entry);
     try (FileInputStream fis = new FileInputStream(file)) {
       long len = IOUtils.copy(fis, tarOutputStream);
@@ -84,6 +101,9 @@ public class TarGzArchiver {
     }
     tarOutputStream.closeArchiveEntry();
     filesInArchive++;
+    if (hardlinkKey != null) {
+      linkableEntries.put(hardlinkKey, name);
+    }
   }
 
   public File getTargetFile() {
@@ -130,6 +150,7 @@ public class TarGzArchiver {
   }
 
   private void closeArchive() throws IOException {
+    linkableEntries.clear();
     if (outputStream != null) {
       IOUtils.closeQuietly(tarOutputStream);
       IOUtils.closeQuietly(gzipOutputStream);
@@ -16,8 +16,11 @@ import javax.crypto.CipherOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.Key;
 import java.time.ZoneOffset;
 import java.util.Map;
@@ -31,24 +34,98 @@ class CopyFileTask {
   private final Logger logger = LoggerFactory.getLogger(getClass());
   private final AbstractBackupDriver.BackupFile backupFile;
   private final File target;
+  private final File linkTarget;
   private final boolean compress;
   private final Key key;
   private final byte[] salt;
+  private boolean linked;
 
-  CopyFileTask(AbstractBackupDriver.BackupFile backupFile, File target, boolean compress) {
-    this(backupFile, target, compress, null, null);
+  CopyFileTask(AbstractBackupDriver.BackupFile backupFile, File target, File linkTarget, boolean compress) {
+    this(backupFile, target, linkTarget, compress, null, null);
   }
 
-  CopyFileTask(AbstractBackupDriver.BackupFile backupFile, File target, boolean compress, Key key, byte[] salt) {
+  CopyFileTask(AbstractBackupDriver.BackupFile backupFile, File target, File linkTarget, boolean compress, Key key, byte[] salt) {
     this.backupFile = backupFile;
     this.target = target;
+    this.linkTarget = linkTarget;
     this.compress = compress;
     this.key = key;
     this.salt = salt;
   }
 
   boolean execute() throws Exception {
-    return backupFile.deleted ? delete() : copy();
+    if (backupFile.deleted) {
+      return delete();
+    }
+    if (linkTarget == null && backupFile.metadataOnly && updateMetadata()) {
+      return true;
+    }
+    linked = linkTarget != null && link();
+    return linked || copy();
+  }
+
+  boolean isLinked() {
+    return linked;
+  }
+
+  // the content is already in the target under another path, link to its latest version rather than copy it again
+  private boolean link() {
+    File source = getLatestVersion(linkTarget);
+    if (source == null || !target.isDirectory() && !target.mkdirs()) {
+      return false;
+    }
+
+    File targetFile = getVersionedFile();
+    File metaFile = FileTools.addExtension(targetFile, FileCopyBackupDriver.META_EXTENSION);
+    try {
+      Files.createLink(targetFile.toPath(), source.toPath());
+      // same content, same iv and salt - and the same attributes, they belong to the inode
+      Files.copy(FileTools.addExtension(source, FileCopyBackupDriver.META_EXTENSION).toPath(), metaFile.toPath());
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      logger.warn("Could not link '{}' to '{}', copying it instead", targetFile, source, e);
+      if (targetFile.exists() && !targetFile.delete()) {
+        logger.warn("Could not remove '{}'", targetFile);
+      }
+      return false;
+    }
+  }
+
+  // the content has not changed since the latest version, which the new version shares - only its meta is new
+  private boolean updateMetadata() {
+    File source = getLatestVersion(target);
+    if (source == null) {
+      return false;
+    }
+
+    File targetFile = getVersionedFile();
+    File metaFile = FileTools.addExtension(targetFile, FileCopyBackupDriver.META_EXTENSION);
+    try {
+      Metadata.Meta.Builder metaBuilder;
+      try (FileInputStream metaIn = new FileInputStream(FileTools.addExtension(source, FileCopyBackupDriver.META_EXTENSION))) {
+        metaBuilder = Metadata.Meta.parseFrom(metaIn).toBuilder();
+      }
+      if (metaBuilder.getDeleted()) {
+        return false;
+      }
+      metaBuilder.setLastModified(TimeUtilsNG.at(backupFile.lastModified).to(ZoneOffset.UTC).toISOString());
+      readAttributes(metaBuilder);
+
+      Files.createLink(targetFile.toPath(), source.toPath());
+      try (FileOutputStream metaOut = new FileOutputStream(metaFile)) {
+        metaBuilder.build().writeTo(metaOut);
+      }
+      return true;
+    } catch (IOException | UnsupportedOperationException e) {
+      logger.warn("Could not store metadata of '{}' with version '{}', copying it instead", backupFile.file, source, e);
+      if (targetFile.exists() && !targetFile.delete()) {
+        logger.warn("Could not remove '{}'", targetFile);
+      }
+      if (metaFile.exists() && !metaFile.delete()) {
+        logger.warn("Could not remove '{}'", metaFile);
+      }
+      return false;
+    }
   }
 
   private boolean copy() throws Exception {
@@ -91,13 +168,7 @@ class CopyFileTask {
     Metadata.Meta.Builder metaBuilder = ng3.Metadata.Meta.newBuilder()
             .setLastModified(TimeUtilsNG.at(backupFile.lastModified).to(ZoneOffset.UTC).toISOString())
             .setFileMD5(ByteString.copyFrom(digestOut.getDigest()));
-
-    try {
-      Map<String, Object> attributes = Files.readAttributes(backupFile.file.toPath(), "unix:uid,gid,mode");
-      metaBuilder.setUid((int) attributes.get("uid"))
-              .setGid((int) attributes.get("gid"))
-              .setMode((int) attributes.get("mode"));
-    } catch (IllegalArgumentException ignored) {}
+    readAttributes(metaBuilder);
 
     if (key != null && salt != null) {
       metaBuilder.setEncrypted(true)
@@ -118,6 +189,15 @@ class CopyFileTask {
     return true;
   }
 
+  private void readAttributes(Metadata.Meta.Builder metaBuilder) throws IOException {
+    try {
+      Map<String, Object> attributes = Files.readAttributes(backupFile.file.toPath(), "unix:uid,gid,mode");
+      metaBuilder.setUid((int) attributes.get("uid"))
+              .setGid((int) attributes.get("gid"))
+              .setMode((int) attributes.get("mode"));
+    } catch (IllegalArgumentException ignored) {}
+  }
+
   private boolean delete() throws Exception {
     if (!target.exists()) {
       return true; // file never existed, we don't need to mark it as deleted
@@ -143,6 +223,22 @@ class CopyFileTask {
     return true;
   }
 
+  // versioning may have removed the early versions, so they are listed rather than counted
+  private File getLatestVersion(File versions) {
+    int latest = 0;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(versions.toPath())) {
+      for (Path version : stream) {
+        String name = version.getFileName().toString();
+        if (name.matches("[0-9]+")) {
+          latest = Math.max(latest, Integer.parseInt(name));
+        }
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    return latest == 0 ? null : new File(versions, "" + latest);
+  }
+
   private File getVersionedFile() {
     int n = 1;
     File f;
@@ -108,54 +108,79 @@ public class FileCopyBackupDriver extends AbstractBackupDriver {
 
     @Override
     protected void handleFile(BackupFile backupFile) {
-      ValuePair<File, String> targetAndPrefix = backupTargets.get(backupFile.directoryId);
-      if (targetAndPrefix == null) {
-        logger.error("Could not find directory prefix '{}' in prepared map when handling file '{}' - this shouldn't happen", backupFile.directoryId, backupFile.file);
+      File target = targetFor(backupFile);
+      if (target == null) {
         report.addError("Internal error while processing '%s' - see system logs for details", backupFile.file);
         report.getTargetReportWriter().failedFile();
+        readFinished(backupFile);
         return;
       }
+      // content already in the target, under another link to the file or the path it was moved from
+      BackupFile stored = backupFile.linkTo != null ? backupFile.linkTo : backupFile.movedFrom;
+      File linkTarget = stored == null ? null : targetFor(stored);
+
+      threadSemaphore.acquireUninterruptibly();
+      try {
+        CopyFileTask copyFileTask;
+        if (encryptionPassword == null) {
+          copyFileTask = new CopyFileTask(backupFile, target, linkTarget, compress);
+        } else {
+          byte[] salt = CryptoUtils.generateSalt();
+          Key key = CryptoUtils.generateKey(encryptionPassword, salt);
+          copyFileTask = new CopyFileTask(backupFile, target, linkTarget, compress, key, salt);
+        }
+
+        executor.submit(() -> {
+          try {
+            if (copyFileTask.execute()) {
+              report.getTargetReportWriter().successfulFile();
+              if (copyFileTask.isLinked() && backupFile.linkTo != null) {
+                linkFinished(backupFile);
+              } else {
+                uploadFinished(backupFile);
+              }
+            } else {
+              report.getTargetReportWriter().failedFile();
+            }
+          } catch (Throwable error) {
+            logger.error("Unhandled exception caught while processing '{}'", backupFile.file);
+            logger.error("", error);
+            report.addError("Internal error while processing '%s' - see system logs for details", backupFile.file);
+            report.getTargetReportWriter().failedFile();
+          } finally {
+            readFinished(backupFile);
+            threadSemaphore.release();
+          }
+        });
+      } catch (Throwable error) {
+        // the task never ran, its read is finished here or the device runs out of read permits
+        logger.error("Could not hand '{}' over for copying", backupFile.file);
+        logger.error("", error);
+        report.addError("Internal error while processing '%s' - see system logs for details", backupFile.file);
+        report.getTargetReportWriter().failedFile();
+        readFinished(backupFile);
+        threadSemaphore.release();
+      }
+    }
+
+    // the directory holding the versions of the file in the target
+    private File targetFor(BackupFile backupFile) {
+      ValuePair<File, String> targetAndPrefix = backupTargets.get(backupFile.directoryId);
+      if (targetAndPrefix == null) {
+        logger.error("Could not find directory prefix '{}' in prepared map when handling file '{}' - this shouldn't happen", backupFile.directoryId, backupFile.file);
+        return null;
+      }
 
       File target = targetAndPrefix.getLeft();
       String prefix = targetAndPrefix.getRight();
       String fqfn = backupFile.file.toString();
       if (!fqfn.startsWith(prefix)) {
         logger.error("File '{}' should start with prefix '{}'", fqfn, prefix);
-        report.addError("Internal error while processing '%s' - see system logs for details", backupFile.file);
-        report.getTargetReportWriter().failedFile();
-        return;
+        return null;
       }
       fqfn = fqfn.substring(prefix.length());
       target = new File(target, fqfn);
-      target = new File(target.getParent(), FILE_PREFIX + target.getName());
-
-      CopyFileTask copyFileTask;
-      if (encryptionPassword == null) {
-        copyFileTask = new CopyFileTask(backupFile, target, compress);
-      } else {
-        byte[] salt = CryptoUtils.generateSalt();
-        Key key = CryptoUtils.generateKey(encryptionPassword, salt);
-        copyFileTask = new CopyFileTask(backupFile, target, compress, key, salt);
-      }
-
-      threadSemaphore.acquireUninterruptibly();
-      executor.submit(() -> {
-        try {
-          if (copyFileTask.execute()) {
-            report.getTargetReportWriter().successfulFile();
-            uploadFinished(backupFile);
-          } else {
-            report.getTargetReportWriter().failedFile();
-          }
-        } catch (Throwable error) {
-          logger.error("Unhandled exception caught while processing '{}'", backupFile.file);
-          logger.error("", error);
-          report.addError("Internal error while processing '%s' - see system logs for details", backupFile.file);
-          report.getTargetReportWriter().failedFile();
-        } finally {
-          threadSemaphore.release();
-        }
-      });
+      return new File(target.getParent(), FILE_PREFIX + target.getName());
     }
   }
 }
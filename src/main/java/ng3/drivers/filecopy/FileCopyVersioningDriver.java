@@ -13,6 +13,10 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -64,30 +68,29 @@ public class FileCopyVersioningDriver implements VersioningDriver {
     }
   }
 
+  // streamed, the mirrored directories can be as large as the ones backed up
   private void performVersioning(File directory, BackupDirectory backupDirectory, VersioningReportWriter report) {
-    File[] files = directory.listFiles();
-    if (files == null) {
-      logger.warn("Could not access directory '{}'", directory);
-      return;
-    }
-
-    for (File file : files) {
-      if (file.isDirectory() && file.getName().startsWith(FileCopyBackupDriver.FILE_PREFIX)) {
-        performFileVersioning(file, backupDirectory, report);
-        cleanup(file, report);
-      } else if (file.isDirectory()) {
-        performVersioning(file, backupDirectory, report);
-        cleanup(file, report);
-      } else {
-        report.addWarning("Unexpected file '{}' - ignored", file);
-        logger.warn("Unexpected file '{}' - ignored", file);
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory.toPath())) {
+      for (Path entry : entries) {
+        File file = entry.toFile();
+        if (file.isDirectory() && file.getName().startsWith(FileCopyBackupDriver.FILE_PREFIX)) {
+          performFileVersioning(file, backupDirectory, report);
+          cleanup(file, report);
+        } else if (file.isDirectory()) {
+          performVersioning(file, backupDirectory, report);
+          cleanup(file, report);
+        } else {
+          report.addWarning("Unexpected file '{}' - ignored", file);
+          logger.warn("Unexpected file '{}' - ignored", file);
+        }
       }
+    } catch (IOException | DirectoryIteratorException e) {
+      logger.warn("Could not access directory '{}'", directory);
     }
   }
 
   private void cleanup(File dir, VersioningReportWriter report) {
-    File[] files = dir.listFiles();
-    if (files != null && files.length == 0) {
+    if (isEmpty(dir)) {
       if (!dir.delete()) {
         report.addWarning("Could not remove empty directory '{}'", dir);
         logger.warn("Could not remove empty directory '{}'", dir);
@@ -97,6 +100,14 @@ public class FileCopyVersioningDriver implements VersioningDriver {
     }
   }
 
+  private boolean isEmpty(File dir) {
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath())) {
+      return !entries.iterator().hasNext();
+    } catch (IOException | DirectoryIteratorException e) {
+      return false;
+    }
+  }
+
   private void performFileVersioning(File dir, BackupDirectory backupDirectory, VersioningReportWriter report) {
     File[] files = dir.listFiles();
     if (files == null) {
@@ -142,44 +142,66 @@ public class S3BackupDriver extends AbstractBackupDriver {
     protected void handleFile(BackupFile backupFile) {
       logger.info("Handle file '{}'", backupFile.file);
 
+      String target = keyFor(backupFile);
+      if (target == null) {
+        report.addError("Internal error while processing '%s' - see system logs for details", backupFile.file);
+        report.getTargetReportWriter().failedFile();
+        readFinished(backupFile);
+        return;
+      }
+      String linkTarget = backupFile.linkTo == null ? null : keyFor(backupFile.linkTo);
+      // the old object of a moved file is removed once this one is stored, so it is copied rather than referred to
+      String copySource = linkTarget != null || backupFile.movedFrom == null ? null : keyFor(backupFile.movedFrom);
+
+      threadSemaphore.acquireUninterruptibly();
+      try {
+        UploadFileTask uploadFileTask;
+        if (encryptionPassword == null) {
+          uploadFileTask = new UploadFileTask(client, bucket, backupFile, target, linkTarget, copySource, compress, rateLimiter);
+        } else {
+          byte[] salt = CryptoUtils.generateSalt();
+          Key key = CryptoUtils.generateKey(encryptionPassword, salt);
+          uploadFileTask = new UploadFileTask(client, bucket, backupFile, target, linkTarget, copySource, compress, rateLimiter, key, salt);
+        }
+
+        executor.submit(() -> {
+          try {
+            uploadFileTask.execute();
+            report.getTargetReportWriter().successfulFile();
+            // a link is a copy of its own, nothing refers to the object it was copied from
+            uploadFinished(backupFile);
+          } catch (Throwable error) {
+            logger.error("Unhandled exception caught while processing '{}'", backupFile.file);
+            logger.error("", error);
+            report.addError("Internal error while processing '%s' - see system logs for details", backupFile.file);
+            report.getTargetReportWriter().failedFile();
+          } finally {
+            readFinished(backupFile);
+            threadSemaphore.release();
+          }
+        });
+      } catch (Throwable error) {
+        // the task never ran, its read is finished here or the device runs out of read permits
+        logger.error("Could not hand '{}' over for upload", backupFile.file);
+        logger.error("", error);
+        report.addError("Internal error while processing '%s' - see system logs for details", backupFile.file);
+        report.getTargetReportWriter().failedFile();
+        readFinished(backupFile);
+        threadSemaphore.release();
+      }
+    }
+
+    private String keyFor(BackupFile backupFile) {
       String target = backupFile.file.toString();
       if (storeAs.containsKey(backupFile.directoryId)) {
         ValuePair<String, String> prefixAndStoreAs = storeAs.get(backupFile.directoryId);
         if (!target.startsWith(prefixAndStoreAs.getLeft())) {
           logger.error("File '{}' should start with prefix '{}'", target, prefixAndStoreAs.getLeft());
-          report.addError("Internal error while processing '%s' - see system logs for details", backupFile.file);
-          report.getTargetReportWriter().failedFile();
-          return;
+          return null;
         }
-        target = prefixAndStoreAs.getRight() + target.substring(prefixAndStoreAs.getLeft().length());
-      } else {
-        target = target.substring(1);
-      }
-
-      UploadFileTask uploadFileTask;
-      if (encryptionPassword == null) {
-        uploadFileTask = new UploadFileTask(client, bucket, backupFile, target, compress, rateLimiter);
-      } else {
-        byte[] salt = CryptoUtils.generateSalt();
-        Key key = CryptoUtils.generateKey(encryptionPassword, salt);
-        uploadFileTask = new UploadFileTask(client, bucket, backupFile, target, compress, rateLimiter, key, salt);
+        return prefixAndStoreAs.getRight() + target.substring(prefixAndStoreAs.getLeft().length());
       }
-
-      threadSemaphore.acquireUninterruptibly();
-      executor.submit(() -> {
-        try {
-          uploadFileTask.execute();
-          report.getTargetReportWriter().successfulFile();
-          //uploadFinished(backupFile); // TODO: den här ska anropas
-        } catch (Throwable error) {
-          logger.error("Unhandled exception caught while processing '{}'", backupFile.file);
-          logger.error("", error);
-          report.addError("Internal error while processing '%s' - see system logs for details", backupFile.file);
-          report.getTargetReportWriter().failedFile();
-        } finally {
-          threadSemaphore.release();
-        }
-      });
+      return target.substring(1);
     }
   }
 }
@@ -1,6 +1,8 @@
 package ng3.drivers.s3;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.util.Base64;
 import com.google.common.util.concurrent.RateLimiter;
@@ -34,20 +36,24 @@ class UploadFileTask {
   private final String bucket;
   private final AbstractBackupDriver.BackupFile backupFile;
   private final String target;
+  private final String linkTarget;
+  private final String copySource;
   private final boolean compress;
   private final Key key;
   private final byte[] salt;
   private final RateLimiter rateLimiter;
 
-  UploadFileTask(AmazonS3 client, String bucket, AbstractBackupDriver.BackupFile backupFile, String target, boolean compress, RateLimiter rateLimiter) {
-    this(client, bucket, backupFile, target, compress, rateLimiter, null, null);
+  UploadFileTask(AmazonS3 client, String bucket, AbstractBackupDriver.BackupFile backupFile, String target, String linkTarget, String copySource, boolean compress, RateLimiter rateLimiter) {
+    this(client, bucket, backupFile, target, linkTarget, copySource, compress, rateLimiter, null, null);
   }
 
-  UploadFileTask(AmazonS3 client, String bucket, AbstractBackupDriver.BackupFile backupFile, String target, boolean compress, RateLimiter rateLimiter, Key key, byte[] salt) {
+  UploadFileTask(AmazonS3 client, String bucket, AbstractBackupDriver.BackupFile backupFile, String target, String linkTarget, String copySource, boolean compress, RateLimiter rateLimiter, Key key, byte[] salt) {
     this.client = client;
     this.bucket = bucket;
     this.backupFile = backupFile;
     this.target = target;
+    this.linkTarget = linkTarget;
+    this.copySource = copySource;
     this.compress = compress;
     this.rateLimiter = rateLimiter;
     this.key = key;
@@ -57,25 +63,70 @@ class UploadFileTask {
   void execute() throws Exception {
     if (backupFile.deleted) {
       delete();
-    } else {
+    } else if (linkTarget != null && link()) {
+      // the content was copied from another link to it
+    } else if (backupFile.metadataOnly && copySource == null && updateMetadata()) {
+      // the stored content is still current
+    } else if (copySource == null || !copy()) {
       upload();
     }
   }
 
-  private void upload() throws Exception {
-    Metadata.Meta.Builder metaBuilder = Metadata.Meta.newBuilder()
-        .setLastModified(TimeUtilsNG.at(backupFile.lastModified).to(ZoneOffset.UTC).toISOString());
+  // copied onto itself server side, which replaces the metadata without sending the content again
+  private boolean updateMetadata() throws IOException {
+    try {
+      client.copyObject(new CopyObjectRequest(bucket, target, bucket, target).withNewObjectMetadata(currentMetadata(target)));
+      return true;
+    } catch (AmazonS3Exception e) {
+      logger.warn("Could not update metadata of '{}', uploading it instead", target, e);
+      return false;
+    }
+  }
 
-    boolean hasUnixDetails;
+  /**
+   * The content is already in the bucket under another link to the file, it is copied server side. The file is not read
+   * again, but the bucket holds a full copy per link - an object only referring to that key would follow it when the
+   * other path is stored again with other content.
+   */
+  private boolean link() throws IOException {
     try {
-      Map<String, Object> attributes = Files.readAttributes(backupFile.file.toPath(), "unix:uid,gid,mode");
-      metaBuilder.setUid((int) attributes.get("uid"))
-          .setGid((int) attributes.get("gid"))
-          .setMode((int) attributes.get("mode"));
-      hasUnixDetails = true;
-    } catch (IllegalArgumentException ignored) {
-      hasUnixDetails = false;
+      client.copyObject(new CopyObjectRequest(bucket, linkTarget, bucket, target).withNewObjectMetadata(currentMetadata(linkTarget)));
+      return true;
+    } catch (AmazonS3Exception e) {
+      logger.warn("Could not copy '{}' to '{}', uploading it instead", linkTarget, target, e);
+      return false;
     }
+  }
+
+  // the metadata of a stored object with the timestamp, owner and mode of this file - the encryption details still hold
+  private ObjectMetadata currentMetadata(String key) throws IOException {
+    Metadata.Meta.Builder metaBuilder = Metadata.Meta.newBuilder();
+    boolean hasUnixDetails = readUnixDetails(metaBuilder);
+    ObjectMetadata metadata = client.getObjectMetadata(bucket, key).clone();
+    metadata.addUserMetadata("last-modified", TimeUtilsNG.at(backupFile.lastModified).to(ZoneOffset.UTC).toISOString());
+    if (hasUnixDetails) {
+      metadata.addUserMetadata("uid", Integer.toString(metaBuilder.getUid()));
+      metadata.addUserMetadata("gid", Integer.toString(metaBuilder.getGid()));
+      metadata.addUserMetadata("mode", Integer.toString(metaBuilder.getMode()));
+    }
+    return metadata;
+  }
+
+  // server side, the content is not read or sent again - the object keeps the metadata it was stored with
+  private boolean copy() {
+    try {
+      client.copyObject(bucket, copySource, bucket, target);
+      return true;
+    } catch (AmazonS3Exception e) {
+      logger.warn("Could not copy '{}' to '{}', uploading it instead", copySource, target, e);
+      return false;
+    }
+  }
+
+  private void upload() throws Exception {
+    Metadata.Meta.Builder metaBuilder = Metadata.Meta.newBuilder()
+        .setLastModified(TimeUtilsNG.at(backupFile.lastModified).to(ZoneOffset.UTC).toISOString());
+    boolean hasUnixDetails = readUnixDetails(metaBuilder);
 
     File sourceFile;
     boolean deleteSourceFile = false;
@@ -110,6 +161,18 @@ class UploadFileTask {
     client.deleteObject(bucket, target);
   }
 
+  private boolean readUnixDetails(Metadata.Meta.Builder metaBuilder) throws IOException {
+    try {
+      Map<String, Object> attributes = Files.readAttributes(backupFile.file.toPath(), "unix:uid,gid,mode");
+      metaBuilder.setUid((int) attributes.get("uid"))
+          .setGid((int) attributes.get("gid"))
+          .setMode((int) attributes.get("mode"));
+      return true;
+    } catch (IllegalArgumentException ignored) {
+      return false;
+    }
+  }
+
   private File createTempFile(Metadata.Meta.Builder metaBuilder) throws Exception {
     File tempFile = File.createTempFile("s3upload-", "", new File("/tmp")); // TODO: confa!
     DigestInputStream in = null;
@@ -1,5 +1,14 @@
+-- a change to this schema ships with a script in migrations/ making the same change to installed catalogs
+
+create table schema_version (
+    version int,
+    applied_at timestamp,
+
+    primary key (version)
+);
+
 create table plan (
-    plan_id varchar(36),
+    plan_id char(16) for bit data,
     last_started timestamp,
     last_versioned timestamp,
 
@@ -7,23 +16,92 @@ create table plan (
 );
 
 create table directory (
-    directory_id varchar(36),
-    plan_id varchar(36),
+    directory_id char(16) for bit data,
+    plan_id char(16) for bit data,
     directory varchar(4096),
+    scan_generation bigint default 0,
+    scan_in_progress boolean default false,
 
     primary key (directory_id),
     foreign key (plan_id) references plan (plan_id)
 );
 
+create table path_node (
+    path_node_id bigint,
+    parent_id bigint,
+    name varchar(4096),
+
+    primary key (path_node_id)
+);
+
+create index path_node_parent_name on path_node (parent_id, name);
+
 create table file (
-    file_id varchar(36),
-    directory_id varchar(36),
-    filename varchar(4096),
+    file_id bigint generated by default as identity,
+    directory_id char(16) for bit data,
+    path_node_id bigint,
+    name varchar(1024),
     last_modified timestamp,
     upload_started timestamp,
     upload_finished timestamp,
     deleted boolean default false,
+    scan_generation bigint default 0,
+    content_hash varchar(32),
+    hardlink_key varchar(64),
+    link_source_id bigint,
+    inode_key varchar(64),
+    file_size bigint,
+    mtime timestamp,
+    moved_from_id bigint,
+    metadata_only boolean default false,
+    lease_owner char(16) for bit data,
+    lease_expires timestamp,
 
     primary key (file_id),
+    foreign key (directory_id) references directory (directory_id),
+    foreign key (path_node_id) references path_node (path_node_id)
+);
+
+create index file_directory_path_node_name on file (directory_id, path_node_id, name);
+create index file_hardlink_key on file (hardlink_key);
+create index file_link_source on file (link_source_id);
+create index file_move_source on file (file_size, inode_key);
+create index file_moved_from on file (moved_from_id);
+create index file_directory_upload on file (directory_id, upload_started, upload_finished, last_modified);
+create index file_lease_owner on file (lease_owner);
+create index file_directory_generation on file (directory_id, scan_generation);
+
+create table scanned_directory (
+    scanned_directory_id char(16) for bit data,
+    directory_id char(16) for bit data,
+    path varchar(4096),
+    last_modified timestamp,
+    inode bigint,
+
+    primary key (scanned_directory_id),
+    foreign key (directory_id) references directory (directory_id)
+);
+
+create table scan_checkpoint (
+    directory_id char(16) for bit data,
+    path varchar(4096),
+    parent_path varchar(4096),
+
     foreign key (directory_id) references directory (directory_id)
-);
\ No newline at end of file
+);
+
+create table scan_history (
+    directory_id char(16) for bit data,
+    started_at timestamp,
+    finished_at timestamp,
+    full_scan boolean,
+    entries int,
+    new_files int,
+    updated_files int,
+    deleted_files int,
+    next_interval int,
+
+    foreign key (directory_id) references directory (directory_id)
+);
+
+create index scan_history_directory_started on scan_history (directory_id, started_at);
@@ -1,3 +1,8 @@
+drop table scan_history;
+drop table scan_checkpoint;
+drop table scanned_directory;
 drop table file;
+drop table path_node;
 drop table directory;
-drop table plan;
\ No newline at end of file
+drop table plan;
+drop table schema_version;
\ No newline at end of file
@@ -0,0 +1,6 @@
+create table schema_version (
+    version int,
+    applied_at timestamp,
+
+    primary key (version)
+);
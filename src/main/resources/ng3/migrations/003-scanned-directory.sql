@@ -0,0 +1,10 @@
+create table scanned_directory (
+    scanned_directory_id varchar(36),
+    directory_id varchar(36),
+    path varchar(4096),
+    last_modified timestamp,
+    inode bigint,
+
+    primary key (scanned_directory_id),
+    foreign key (directory_id) references directory (directory_id)
+);
@@ -0,0 +1,2 @@
+alter table directory add column scan_generation bigint default 0;
+alter table file add column scan_generation bigint default 0;
@@ -0,0 +1,9 @@
+alter table directory add column scan_in_progress boolean default false;
+
+create table scan_checkpoint (
+    directory_id varchar(36),
+    path varchar(4096),
+    parent_path varchar(4096),
+
+    foreign key (directory_id) references directory (directory_id)
+);
@@ -0,0 +1 @@
+alter table file add column content_hash varchar(32);
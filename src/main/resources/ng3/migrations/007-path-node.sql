@@ -0,0 +1,12 @@
+create table path_node (
+    path_node_id bigint,
+    parent_id bigint,
+    name varchar(4096),
+
+    primary key (path_node_id)
+);
+
+create index path_node_parent_name on path_node (parent_id, name);
+
+alter table file add column path_node_id bigint;
+alter table file add column name varchar(1024);
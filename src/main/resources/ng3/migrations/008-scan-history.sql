@@ -0,0 +1,15 @@
+create table scan_history (
+    directory_id varchar(36),
+    started_at timestamp,
+    finished_at timestamp,
+    full_scan boolean,
+    entries int,
+    new_files int,
+    updated_files int,
+    deleted_files int,
+    next_interval int,
+
+    foreign key (directory_id) references directory (directory_id)
+);
+
+create index scan_history_directory_started on scan_history (directory_id, started_at);
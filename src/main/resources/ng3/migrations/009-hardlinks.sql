@@ -0,0 +1,5 @@
+alter table file add column hardlink_key varchar(64);
+alter table file add column link_source_id varchar(36);
+
+create index file_hardlink_key on file (hardlink_key);
+create index file_link_source on file (link_source_id);
@@ -0,0 +1,7 @@
+alter table file add column inode_key varchar(64);
+alter table file add column file_size bigint;
+alter table file add column mtime timestamp;
+alter table file add column moved_from_id varchar(36);
+
+create index file_move_source on file (file_size, inode_key);
+create index file_moved_from on file (moved_from_id);
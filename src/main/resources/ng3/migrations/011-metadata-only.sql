@@ -0,0 +1 @@
+alter table file add column metadata_only boolean default false;
@@ -0,0 +1 @@
+create index file_directory_upload on file (directory_id, upload_started, upload_finished, last_modified);
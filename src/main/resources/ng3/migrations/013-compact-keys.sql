@@ -0,0 +1,137 @@
+create function uuid_bytes(uuid varchar(36)) returns varchar(16) for bit data
+    language java parameter style java no sql returns null on null input
+    external name 'ng3.db.DbHandler.uuidBytes';
+
+create table plan_new (
+    plan_id char(16) for bit data not null,
+    last_started timestamp,
+    last_versioned timestamp,
+
+    primary key (plan_id)
+);
+
+insert into plan_new (plan_id, last_started, last_versioned)
+    select uuid_bytes(plan_id), last_started, last_versioned from plan;
+
+create table directory_new (
+    directory_id char(16) for bit data not null,
+    plan_id char(16) for bit data,
+    directory varchar(4096),
+    scan_generation bigint default 0,
+    scan_in_progress boolean default false,
+
+    primary key (directory_id)
+);
+
+insert into directory_new (directory_id, plan_id, directory, scan_generation, scan_in_progress)
+    select uuid_bytes(directory_id), uuid_bytes(plan_id), directory, scan_generation, scan_in_progress from directory;
+
+create table file_key (
+    old_file_id varchar(36) not null,
+    file_id bigint generated always as identity,
+
+    primary key (old_file_id)
+);
+
+insert into file_key (old_file_id)
+    select file_id from file;
+
+create table file_new (
+    file_id bigint generated by default as identity,
+    directory_id char(16) for bit data,
+    path_node_id bigint,
+    name varchar(1024),
+    last_modified timestamp,
+    upload_started timestamp,
+    upload_finished timestamp,
+    deleted boolean default false,
+    scan_generation bigint default 0,
+    content_hash varchar(32),
+    hardlink_key varchar(64),
+    link_source_id bigint,
+    inode_key varchar(64),
+    file_size bigint,
+    mtime timestamp,
+    moved_from_id bigint,
+    metadata_only boolean default false,
+
+    primary key (file_id)
+);
+
+insert into file_new (file_id, directory_id, path_node_id, name, last_modified, upload_started, upload_finished, deleted, scan_generation, content_hash, hardlink_key, link_source_id, inode_key, file_size, mtime, moved_from_id, metadata_only)
+    select k.file_id, uuid_bytes(f.directory_id), f.path_node_id, f.name, f.last_modified, f.upload_started, f.upload_finished, f.deleted, f.scan_generation, f.content_hash, f.hardlink_key,
+        (select l.file_id from file_key l where l.old_file_id=f.link_source_id),
+        f.inode_key, f.file_size, f.mtime,
+        (select m.file_id from file_key m where m.old_file_id=f.moved_from_id),
+        f.metadata_only
+    from file f, file_key k where k.old_file_id=f.file_id;
+
+drop table file_key;
+
+create table scanned_directory_new (
+    scanned_directory_id char(16) for bit data not null,
+    directory_id char(16) for bit data,
+    path varchar(4096),
+    last_modified timestamp,
+    inode bigint,
+
+    primary key (scanned_directory_id)
+);
+
+insert into scanned_directory_new (scanned_directory_id, directory_id, path, last_modified, inode)
+    select uuid_bytes(scanned_directory_id), uuid_bytes(directory_id), path, last_modified, inode from scanned_directory;
+
+create table scan_checkpoint_new (
+    directory_id char(16) for bit data,
+    path varchar(4096),
+    parent_path varchar(4096)
+);
+
+insert into scan_checkpoint_new (directory_id, path, parent_path)
+    select uuid_bytes(directory_id), path, parent_path from scan_checkpoint;
+
+create table scan_history_new (
+    directory_id char(16) for bit data,
+    started_at timestamp,
+    finished_at timestamp,
+    full_scan boolean,
+    entries int,
+    new_files int,
+    updated_files int,
+    deleted_files int,
+    next_interval int
+);
+
+insert into scan_history_new (directory_id, started_at, finished_at, full_scan, entries, new_files, updated_files, deleted_files, next_interval)
+    select uuid_bytes(directory_id), started_at, finished_at, full_scan, entries, new_files, updated_files, deleted_files, next_interval from scan_history;
+
+drop table scan_history;
+drop table scan_checkpoint;
+drop table scanned_directory;
+drop table file;
+drop table directory;
+drop table plan;
+
+rename table plan_new to plan;
+rename table directory_new to directory;
+rename table file_new to file;
+rename table scanned_directory_new to scanned_directory;
+rename table scan_checkpoint_new to scan_checkpoint;
+rename table scan_history_new to scan_history;
+
+alter table directory add foreign key (plan_id) references plan (plan_id);
+alter table file add foreign key (directory_id) references directory (directory_id);
+alter table file add foreign key (path_node_id) references path_node (path_node_id);
+alter table scanned_directory add foreign key (directory_id) references directory (directory_id);
+alter table scan_checkpoint add foreign key (directory_id) references directory (directory_id);
+alter table scan_history add foreign key (directory_id) references directory (directory_id);
+
+create index file_path_node_name on file (path_node_id, name);
+create index file_hardlink_key on file (hardlink_key);
+create index file_link_source on file (link_source_id);
+create index file_move_source on file (file_size, inode_key);
+create index file_moved_from on file (moved_from_id);
+create index file_directory_upload on file (directory_id, upload_started, upload_finished, last_modified);
+create index scan_history_directory_started on scan_history (directory_id, started_at);
+
+drop function uuid_bytes;
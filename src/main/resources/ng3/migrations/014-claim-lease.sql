@@ -0,0 +1,3 @@
+alter table file add column lease_owner char(16) for bit data;
+alter table file add column lease_expires timestamp;
+create index file_lease_owner on file (lease_owner);
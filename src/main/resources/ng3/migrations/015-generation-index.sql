@@ -0,0 +1 @@
+create index file_directory_generation on file (directory_id, scan_generation);
@@ -0,0 +1,2 @@
+drop index file_path_node_name;
+create index file_directory_path_node_name on file (directory_id, path_node_id, name);
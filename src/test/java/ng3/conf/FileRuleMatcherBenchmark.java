@@ -0,0 +1,51 @@
+package ng3.conf;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import s5lab.configuration.FileRule;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times the compiled matcher against the linear loop over the rules of {@link FileRuleMatcherTest}. Not run by the
+ * build, usage: FileRuleMatcherBenchmark [paths] [exclude-directory rules] [rounds]
+ */
+public class FileRuleMatcherBenchmark {
+  private static final Logger logger = LoggerFactory.getLogger(FileRuleMatcherBenchmark.class);
+
+  public static void main(String[] args) {
+    int pathCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int directoryRules = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+    int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+    List<FileRule> rules = FileRuleMatcherTest.rules(directoryRules);
+    List<Path> paths = FileRuleMatcherTest.paths(pathCount, directoryRules);
+    List<File> files = new ArrayList<>(pathCount);
+    paths.forEach(v -> files.add(v.toFile()));
+    FileRuleMatcher matcher = FileRuleMatcher.compile(rules);
+
+    for (int round = 1; round <= rounds; round++) {
+      long t0 = System.nanoTime();
+      int linearAccepted = 0;
+      for (File file : files) {
+        if (FileRuleMatcherTest.linear(rules, file)) {
+          linearAccepted++;
+        }
+      }
+      long t1 = System.nanoTime();
+      int compiledAccepted = 0;
+      for (Path path : paths) {
+        if (matcher.accept(path)) {
+          compiledAccepted++;
+        }
+      }
+      long t2 = System.nanoTime();
+
+      logger.info(String.format("round %2d: linear %6.1f ns/path (%d accepted), compiled %6.1f ns/path (%d accepted)",
+              round, (t1 - t0) / (double) pathCount, linearAccepted, (t2 - t1) / (double) pathCount, compiledAccepted));
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package ng3.conf;
+
+import org.junit.Test;
+import s5lab.configuration.ExcludeDirectoryFileRule;
+import s5lab.configuration.ExcludeFilenamePrefixFileRule;
+import s5lab.configuration.ExcludeHiddenFilesFileRule;
+import s5lab.configuration.ExcludeLongFilenamesRule;
+import s5lab.configuration.FileRule;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The compiled matcher against evaluating the rules one by one, over generated paths that are never touched on disk.
+ */
+public class FileRuleMatcherTest {
+  private static final int DIRECTORY_RULES = 60;
+
+  @Test
+  public void acceptsWhatTheLinearLoopAccepts() {
+    List<FileRule> rules = rules(DIRECTORY_RULES);
+    FileRuleMatcher matcher = FileRuleMatcher.compile(rules);
+
+    int rejected = 0;
+    for (Path path : paths(100_000, DIRECTORY_RULES)) {
+      boolean expected = linear(rules, path.toFile());
+      assertEquals(path.toString(), expected, matcher.accept(path));
+      rejected += expected ? 0 : 1;
+    }
+
+    // every rejection is counted against exactly one rule
+    assertEquals(rejected, matcher.drainHits().values().stream().mapToLong(Long::longValue).sum());
+  }
+
+  @Test
+  public void rejectsBelowAnExcludedDirectory() {
+    FileRuleMatcher matcher = FileRuleMatcher.compile(rules(DIRECTORY_RULES));
+
+    assertEquals(false, matcher.accept(Paths.get("/data/project-7/build")));
+    assertEquals(false, matcher.accept(Paths.get("/data/project-7/build/classes/Main.class")));
+    assertEquals(true, matcher.accept(Paths.get("/data/project-7/builds/Main.class")));
+    assertEquals(true, matcher.accept(Paths.get("/data/project-70/build/Main.class")));
+  }
+
+  // sixty exclude-directory rules, like our global rules, and the name-only rules ahead of them
+  static List<FileRule> rules(int directoryRules) {
+    List<FileRule> rules = new ArrayList<>();
+    for (int i = 0; i < directoryRules; i++) {
+      rules.add(new ExcludeDirectoryFileRule(new File("/data/project-" + i + "/build")));
+    }
+    for (String prefix : new String[] { "~", ".#", "#", "core." }) {
+      ExcludeFilenamePrefixFileRule rule = new ExcludeFilenamePrefixFileRule();
+      rule.setPrefix(prefix);
+      rules.add(rule);
+    }
+    rules.add(new ExcludeHiddenFilesFileRule());
+    ExcludeLongFilenamesRule longFilenamesRule = new ExcludeLongFilenamesRule();
+    longFilenamesRule.setMaxLength(1024);
+    rules.add(longFilenamesRule);
+    return rules;
+  }
+
+  // half of the projects have an excluded build directory, one name in ten matches a name rule
+  static List<Path> paths(int count, int directoryRules) {
+    Random random = new Random(4711);
+    String[] directories = { "src", "build", "docs", ".git", "lib/deps" };
+    String[] names = { "file", "~file", ".hidden", "core.", "#file" };
+    List<Path> paths = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      paths.add(Paths.get("/data",
+              "project-" + random.nextInt(directoryRules * 2),
+              directories[random.nextInt(directories.length)],
+              "dir-" + random.nextInt(100),
+              names[random.nextInt(10) == 0 ? random.nextInt(names.length) : 0] + i + ".txt"));
+    }
+    return paths;
+  }
+
+  static boolean linear(List<FileRule> rules, File file) {
+    for (FileRule rule : rules) {
+      if (!rule.accept(file)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}